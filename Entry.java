@@ -1,7 +1,11 @@
 // Project Packages
 import components.structs.*;
+import components.BatchRenderer;
 import components.Frame;
 import components.ModelLoader;
+import components.RenderLoop;
+import components.StreamingMesh;
+import components.server.RenderServer;
 
 // Java Packages
 import java.awt.GraphicsConfiguration;
@@ -9,6 +13,9 @@ import javax.swing.JFrame;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowEvent;
+import javax.management.JMException;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /* Entry
  * 
@@ -24,6 +31,19 @@ public class Entry {
     static GraphicsConfiguration gc;
 
     public static void main(String[] args) {
+
+        // Render frames to files without opening a window
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchRenderer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        // Serve rendered images over HTTP without opening a window
+        if (args.length > 0 && args[0].equals("--serve")) {
+            RenderServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         int width = 640;
         int height = 360;
         
@@ -40,16 +60,26 @@ public class Entry {
 
         // Load a model into a mesh object, add to mesh list
         // We are using the Blender mascot Suzanne as our test model
-        Mesh test = ModelLoader.objToMesh(System.getProperty("user.dir")+"\\funnymunkey.obj");
+        // It loads in the background and is drawn as far as it has got, so the window never waits for it
+        StreamingMesh test = ModelLoader.loadStreaming(Paths.get(System.getProperty("user.dir")+"\\funnymunkey.obj"));
+        test.whenLoaded().exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        });
         f.addMesh(test);
 
-        // Main loop
-        while (true) {
+        // Let JMX clients such as JConsole watch the frame stats
+        try {
+            f.getRenderer().getStats().register("window");
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
 
-            // Redraw the screen
-            frame.repaint();
+        // Rasterize each frame on its own thread while the next one is projected, a frame behind
+        f.setPipelineDepth(1);
 
-        }
+        // Draw at 60 frames per second, 0 draws as fast as possible
+        new RenderLoop(f, 60).start();
     }
 
 
@@ -61,6 +91,11 @@ public class Entry {
         public void keyPressed(KeyEvent e) {
                 
             switch (e.getKeyCode()) {
+                // Show or hide the frame stats
+                case KeyEvent.VK_F3:
+                    f.showStats = !f.showStats;
+                break;
+
                 case KeyEvent.VK_ESCAPE:
                 Entry.frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
                 break;
@@ -80,4 +115,4 @@ public class Entry {
             f.input[e.getKeyCode()] = 0;
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
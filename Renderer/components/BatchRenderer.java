@@ -0,0 +1,272 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.imageio.ImageIO;
+
+/* BatchRenderer
+ *
+ * Renders a sequence of frames of a model offscreen and writes them to numbered files, for
+ * turntables and camera fly-throughs. Each frame is drawn into one of a small set of images
+ * and handed to a fixed pool of encoder threads, which write it out as a PNG or raw RGB
+ * file while the next frames are drawn. Written images go back into the set, so rendering
+ * only waits when the encoders have fallen a whole set of images behind, and memory stays
+ * the same for any number of frames.
+ *
+ * Run with: java -Djava.awt.headless=true Entry --batch model.obj [options]
+ *   -s WxH            resolution (default 640x360)
+ *   -n frames         number of frames (default 120)
+ *   -o dir            directory the frames are written to (default frames)
+ *   -f png|raw        file format, raw is 3 bytes of red, green and blue per pixel, one row after another (default png)
+ *   --turntable deg   spin the model about its vertical axis through deg degrees over the frames (default 360)
+ *   --path file       move the camera through the keyframes in file instead, one "x y z yaw" per line,
+ *                     spread evenly over the frames
+ *   -j threads        encoder threads (default 1 less than the cores, at least 1)
+ *   -r threads        raster threads (default the cores)
+ *
+*/
+
+public class BatchRenderer {
+
+    // Properties
+    static final int MAX_IMAGES = 8;                        // Most images drawn into by default, each holds a whole frame
+    int width = 640, height = 360;                          // Size of the frames
+    int frames = 120;                                       // Number of frames to render
+    Path output = Paths.get("frames");                      // Directory the frames are written to
+    boolean raw;                                            // Write raw RGB files instead of PNGs
+    float turntable = 360;                                  // Degrees the model turns through over the frames
+    float[] path;                                           // Camera keyframes as x, y, z, yaw, null for a turntable
+    int encoders = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);    // Threads writing frames out
+    int rasterThreads = Runtime.getRuntime().availableProcessors();                 // Threads drawing each frame
+    int images;                                             // Images frames are drawn into, 0 works it out from the encoders
+    long renderNanos, waitNanos;                            // Time spent drawing frames and waiting for a free image
+
+    // Methods
+
+    // Renders every frame of the mesh and writes them all, returns when the last one is written
+    public void render(IndexedMesh mesh) throws IOException, InterruptedException {
+        Files.createDirectories(output);
+        if (!mesh.hasBounds())
+            mesh.computeBounds();
+
+        Renderer renderer = new Renderer(width, height);
+        renderer.setRasterThreads(rasterThreads);
+        Scene scene = new Scene();
+        MeshInstance inst = scene.add(mesh, new Mat4());
+        Camera camera = new Camera();
+
+        // Enough images for every encoder to work on one while the next frame is drawn
+        int count = images > 0 ? images : Math.min(encoders + 2, MAX_IMAGES);
+        BlockingQueue<BufferedImage> free = new ArrayBlockingQueue<>(count);
+        free.add(renderer.getImage());
+        for (int i = 1; i < count; i++)
+            free.add(renderer.createTarget());
+
+        AtomicInteger encoder = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(encoders, r -> {
+            Thread t = new Thread(r, "Encoder " + encoder.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ThreadLocal<byte[]> rgb = ThreadLocal.withInitial(() -> new byte[width * height * 3]);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try {
+            for (int k = 0; k < frames && failure.get() == null; k++) {
+
+                // Take an image the encoders are done with
+                long t = System.nanoTime();
+                BufferedImage image = free.take();
+                long t1 = System.nanoTime();
+                waitNanos += t1 - t;
+
+                // Move the model or camera to where it is on this frame and draw it
+                place(k, mesh, inst, camera);
+                renderer.setTarget(image);
+                renderer.render(scene, camera);
+                renderNanos += System.nanoTime() - t1;
+
+                // Write it out on an encoder thread, then hand the image back
+                Path file = output.resolve(String.format("frame_%05d.%s", k, raw ? "rgb" : "png"));
+                pool.execute(() -> {
+                    try {
+                        if (raw)
+                            writeRaw(image, file, rgb.get());
+                        else if (!ImageIO.write(image, "png", file.toFile()))
+                            throw new IOException("No PNG writer");
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        free.add(image);
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof IOException)
+            throw (IOException)e;
+        if (e != null)
+            throw new IOException("Writing a frame failed", e);
+    }
+
+    // Moves the mesh instance and camera to where they are on frame k
+    void place(int k, IndexedMesh mesh, MeshInstance inst, Camera camera) {
+        if (path == null) {
+            // Turn the model about its centre, far enough in front of the camera that it always fits
+            // Without a path the camera stays at the origin looking down z
+            float angle = (float)Math.toRadians(turntable * (frames > 1 ? (float)k / frames : 0));
+            float distance = mesh.radius * 1.6f + 0.1f;
+            Mat4 m = inst.transform;
+            Mat4.translate(-mesh.center.x, -mesh.center.y, -mesh.center.z, m);
+            m.matrixMultiply(Mat4.rotateY(angle));
+            m.matrixMultiply(Mat4.translate(0, 0, distance));
+            inst.getScene().update(inst);
+            return;
+        }
+
+        // Blend between the two keyframes either side of this frame, the first and last frames
+        // are on the first and last keyframes
+        int keys = path.length / 4;
+        float p = (frames > 1 ? (float)k / (frames - 1) : 0) * (keys - 1);
+        int a = Math.min((int)p, keys - 1), b = Math.min(a + 1, keys - 1);
+        float s = p - a;
+        camera.position.set(
+            lerp(path[a * 4], path[b * 4], s),
+            lerp(path[a * 4 + 1], path[b * 4 + 1], s),
+            lerp(path[a * 4 + 2], path[b * 4 + 2], s));
+        camera.yaw = lerp(path[a * 4 + 3], path[b * 4 + 3], s);
+    }
+
+    // Static Methods
+
+    public static void main(String[] args) {
+        BatchRenderer batch = new BatchRenderer();
+        String model = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-s":
+                        String[] wh = args[++i].split("x");
+                        batch.width = Integer.parseInt(wh[0]);
+                        batch.height = Integer.parseInt(wh[1]);
+                        break;
+                    case "-n": batch.frames = Integer.parseInt(args[++i]); break;
+                    case "-o": batch.output = Paths.get(args[++i]); break;
+                    case "-f": batch.raw = args[++i].equals("raw"); break;
+                    case "--turntable": batch.turntable = Float.parseFloat(args[++i]); break;
+                    case "--path": batch.path = readPath(Paths.get(args[++i])); break;
+                    case "-j": batch.encoders = Integer.parseInt(args[++i]); break;
+                    case "-r": batch.rasterThreads = Integer.parseInt(args[++i]); break;
+                    default: model = args[i];
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Bad arguments: " + e);
+            System.exit(1);
+        }
+        if (model == null) {
+            System.err.println("Usage: --batch model.obj [-s WxH] [-n frames] [-o dir] [-f png|raw] [--turntable deg | --path file] [-j threads] [-r threads]");
+            System.exit(1);
+        }
+        if (batch.width < 1 || batch.height < 1 || batch.frames < 1 || batch.encoders < 1 || batch.rasterThreads < 1) {
+            System.err.println("Bad arguments: the size, frames, -j and -r must all be at least 1");
+            System.exit(1);
+        }
+
+        IndexedMesh mesh = null;
+        try {
+            mesh = ModelLoader.load(Paths.get(model));
+        } catch (NoSuchFileException e) {
+            System.err.println("Could not find " + model);
+            System.exit(1);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not load " + model + ": " + e.getMessage());
+            System.exit(1);
+        }
+        if (mesh.triangleCount == 0) {
+            System.err.println("No faces in " + model);
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        try {
+            batch.render(mesh);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Batch render failed: " + e);
+            System.exit(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d frames of %dx%d to %s in %.2f s, %.1f frames/s%n",
+            batch.frames, batch.width, batch.height, batch.output, seconds, batch.frames / seconds);
+        System.out.printf("drawing %.2f ms/frame, waiting for encoders %.2f ms/frame, %d encoder threads%n",
+            batch.renderNanos / 1e6 / batch.frames, batch.waitNanos / 1e6 / batch.frames, batch.encoders);
+        System.exit(0);
+    }
+
+    // Reads camera keyframes, one "x y z yaw" per line, blank lines and lines starting with # are skipped
+    public static float[] readPath(Path file) throws IOException {
+        List<float[]> keys = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] s = line.split("\\s+");
+            if (s.length != 4)
+                throw new IOException("Expected x y z yaw: " + line);
+            try {
+                keys.add(new float[] { Float.parseFloat(s[0]), Float.parseFloat(s[1]), Float.parseFloat(s[2]), Float.parseFloat(s[3]) });
+            } catch (NumberFormatException e) {
+                throw new IOException("Expected x y z yaw: " + line, e);
+            }
+        }
+        if (keys.isEmpty())
+            throw new IOException("No keyframes in " + file);
+        float[] path = new float[keys.size() * 4];
+        for (int i = 0; i < keys.size(); i++)
+            System.arraycopy(keys.get(i), 0, path, i * 4, 4);
+        return path;
+    }
+
+    // Writes the image as 3 bytes of red, green and blue per pixel, using buffer to hold them
+    static void writeRaw(BufferedImage image, Path file, byte[] buffer) throws IOException {
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+            int p = pixels[i];
+            buffer[j] = (byte)(p >> 16);
+            buffer[j + 1] = (byte)(p >> 8);
+            buffer[j + 2] = (byte)p;
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(buffer, 0, pixels.length * 3);
+        }
+    }
+
+    // Returns the value a fraction s of the way from a to b
+    static float lerp(float a, float b, float s) {
+        return a + (b - a) * s;
+    }
+}
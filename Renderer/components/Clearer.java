@@ -0,0 +1,155 @@
+// Package
+package components;
+
+// Java packages
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Clearer
+ *
+ * Gets the frame and z buffers ready for a new frame without writing every pixel of both.
+ * The z buffer is tagged with a generation for each BLOCK x BLOCK block the rasterizer walks.
+ * Clearing it just moves on to the next generation, and a block tagged with an older one
+ * counts as cleared to the far plane: the rasterizer calls touch before it uses a block,
+ * which fills that block's depths and tags it the first time each frame.
+ * The blocks touched during a frame are remembered for the frame buffer they were drawn
+ * into, so the next time that buffer is cleared only those blocks are filled with the
+ * background, everything else still is. Pixels written some other way, such as wire frames,
+ * have to be reported with touchAll, which makes the next clear of that buffer a full one.
+ * Full clears fill whole buffers with Arrays.fill, which the JIT turns into vector stores.
+ * Two raster threads must never touch the same block at once, so tiles have to be made of
+ * whole blocks; begin with partial false clears everything straight away instead.
+ *
+*/
+
+public class Clearer {
+
+    // Properties
+    static final int BLOCK = Rasterizer.BLOCK;              // Width and height of a tagged block in pixels
+    static final int TARGETS = 8;                           // Frame buffers whose drawn blocks are remembered
+    int[] frameBuffer;                                      // The frame buffer being drawn this frame
+    float[] zBuffer;                                        // The depth buffer, shared by every frame buffer
+    int width, height;                                      // Size of the buffers
+    int blocksX, blocksY;                                   // Blocks across and down the buffers
+    int background;                                         // Color frame buffers are cleared to
+    float far;                                              // Depth the z buffer is cleared to
+    int[] generation;                                       // Generation each block's depths were last cleared in
+    int current;                                            // Generation of the frame being drawn
+    Target[] targets = new Target[TARGETS];                 // What was drawn into each frame buffer last time
+    Target target;                                          // Record of the frame being drawn
+
+    // Constructors
+    public Clearer(float[] zBuffer, int width, int height, int background, float far) {
+        this.zBuffer = zBuffer;
+        this.width = width;
+        this.height = height;
+        this.background = background;
+        this.far = far;
+        blocksX = (width + BLOCK - 1) / BLOCK;
+        blocksY = (height + BLOCK - 1) / BLOCK;
+        generation = new int[blocksX * blocksY];
+    }
+
+    // Methods
+
+    // Starts a frame drawn into frameBuffer
+    // With partial, clears what was drawn the last time that buffer was used and leaves the
+    // z buffer to be cleared a block at a time by touch. Without, fills both buffers completely
+    public void begin(int[] frameBuffer, boolean partial) {
+        this.frameBuffer = frameBuffer;
+        target = targetFor(frameBuffer);
+
+        // A new generation makes every block of the z buffer stale
+        // Wrapping around would make blocks from long ago look current, so start over first
+        if (current == Integer.MAX_VALUE) {
+            Arrays.fill(generation, 0);
+            current = 0;
+        }
+        current++;
+
+        if (!partial) {
+            Arrays.fill(frameBuffer, background);
+            Arrays.fill(zBuffer, far);
+            // Nothing is left to clear, and nothing that touch records would be
+            Arrays.fill(generation, current);
+            target.all = true;
+            target.count.set(0);
+            return;
+        }
+
+        // Clear the blocks drawn the last time, or everything if they weren't all recorded
+        if (target.all)
+            Arrays.fill(frameBuffer, background);
+        else {
+            int n = target.count.get();
+            for (int i = 0; i < n; i++)
+                fillBlock(frameBuffer, target.blocks[i]);
+        }
+        target.all = false;
+        target.count.set(0);
+    }
+
+    // Gets block bx, by ready to be drawn, filling its depths if it is still from an older generation
+    // Can be called from any raster thread, as long as no other thread is using the same block
+    public void touch(int bx, int by) {
+        int b = by * blocksX + bx;
+        if (generation[b] == current)
+            return;
+        generation[b] = current;
+        int x0 = bx * BLOCK, x1 = Math.min(width, x0 + BLOCK);
+        for (int y = by * BLOCK, y1 = Math.min(height, y + BLOCK); y < y1; y++)
+            Arrays.fill(zBuffer, y * width + x0, y * width + x1, far);
+        // Each block is only added once a generation, so the list can't overflow
+        target.blocks[target.count.getAndIncrement()] = b;
+    }
+
+    // Makes the next clear of this frame's buffer a full one, for pixels drawn without touching their blocks
+    public void touchAll() {
+        if (target != null)
+            target.all = true;
+    }
+
+    // Fills block b of the frame buffer with the background
+    private void fillBlock(int[] frameBuffer, int b) {
+        int x0 = (b % blocksX) * BLOCK, x1 = Math.min(width, x0 + BLOCK);
+        for (int y = (b / blocksX) * BLOCK, y1 = Math.min(height, y + BLOCK); y < y1; y++)
+            Arrays.fill(frameBuffer, y * width + x0, y * width + x1, background);
+    }
+
+    // Returns the record of frameBuffer, replacing the least recently used one if there isn't one
+    private Target targetFor(int[] frameBuffer) {
+        int oldest = 0;
+        for (int i = 0; i < TARGETS; i++) {
+            Target t = targets[i];
+            if (t == null) {
+                oldest = i;
+                break;
+            }
+            if (t.frameBuffer == frameBuffer) {
+                t.used = current;
+                return t;
+            }
+            if (t.used < targets[oldest].used)
+                oldest = i;
+        }
+        // A buffer seen for the first time could hold anything
+        Target t = new Target(frameBuffer, blocksX * blocksY);
+        t.used = current;
+        targets[oldest] = t;
+        return t;
+    }
+
+    // What was drawn into one frame buffer
+    static class Target {
+        int[] frameBuffer;                                  // The frame buffer
+        int[] blocks;                                       // Blocks drawn into it
+        AtomicInteger count = new AtomicInteger();          // Number of blocks in the list, raster threads can add at once
+        boolean all = true;                                 // Whether the whole buffer has to be cleared
+        int used;                                           // Generation it was last drawn in, to replace the oldest
+
+        Target(int[] frameBuffer, int blocks) {
+            this.frameBuffer = frameBuffer;
+            this.blocks = new int[blocks];
+        }
+    }
+}
@@ -0,0 +1,181 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+/* Clipper
+ *
+ * Clips triangles in homogeneous clip space (x, y, z, w after the projection matrix, before
+ * dividing by w) and projects what is left to the screen.
+ * Every vertex gets an outcode, a bit for each plane it is outside of. Triangles with all
+ * three vertices outside the same plane are dropped without any clipping. The screen edges
+ * are surrounded by a guard band: the rasterizer already limits itself to the screen, so a
+ * triangle only has to be clipped if it crosses the near or far plane or reaches past the
+ * guard band, which leaves most triangles that poke off the screen untouched.
+ * The rest are clipped against just the planes they cross, one after another
+ * (Sutherland-Hodgman), using fixed scratch polygons, and split back into a fan of triangles.
+ *
+*/
+
+public class Clipper {
+
+    // Properties
+    static final int NEAR = 1, FAR = 2;                     // Outcode bits for the near and far planes, z >= 0 and z <= w
+    static final int LEFT = 4, RIGHT = 8;                   // Outcode bits for the screen edges, -w <= x <= w
+    static final int BOTTOM = 16, TOP = 32;                 // and -w <= y <= w
+    static final int GUARD_LEFT = 64, GUARD_RIGHT = 128;    // Outcode bits for the guard band, -g * w <= x <= g * w
+    static final int GUARD_BOTTOM = 256, GUARD_TOP = 512;   // and -g * w <= y <= g * w
+    static final int CLIP_PLANES = NEAR | FAR | GUARD_LEFT | GUARD_RIGHT | GUARD_BOTTOM | GUARD_TOP;
+    static final int MAX_POINTS = 16;                       // A triangle clipped by 6 planes has at most 9 points
+    int width, height;                                      // Size of the screen in pixels
+    float guard;                                            // Size of the guard band as a multiple of the screen
+    float[] poly = new float[MAX_POINTS * 4];               // Points of the polygon being clipped, x, y, z, w each
+    float[] next = new float[MAX_POINTS * 4];               // The polygon after clipping against the current plane
+
+    // Constructors
+    public Clipper(int width, int height) {
+        this(width, height, 4);
+    }
+
+    // guard is how far the guard band reaches as a multiple of the screen's half size, at least 1
+    public Clipper(int width, int height, float guard) {
+        this.width = width;
+        this.height = height;
+        setGuardBand(guard);
+    }
+
+    // Methods
+
+    // Change the size of the guard band, 1 clips to the screen edges
+    // Bigger bands clip less often but leave larger coordinates for the rasterizer
+    public void setGuardBand(float guard) {
+        if (!(guard >= 1))
+            throw new IllegalArgumentException("Guard band can't be smaller than the screen: " + guard);
+        this.guard = guard;
+    }
+
+    // Works out the outcode of count packed x, y, z, w points
+    public void outcodes(float[] clip, int offset, int[] codes, int codeOffset, int count) {
+        float g = guard;
+        for (int i = 0; i < count; i++, offset += 4) {
+            float x = clip[offset], y = clip[offset + 1], z = clip[offset + 2], w = clip[offset + 3];
+            float gw = g * w;
+            int c = 0;
+            if (z < 0) c |= NEAR;
+            if (z > w) c |= FAR;
+            if (x < -w) c |= LEFT;
+            if (x > w) c |= RIGHT;
+            if (y < -w) c |= BOTTOM;
+            if (y > w) c |= TOP;
+            if (x < -gw) c |= GUARD_LEFT;
+            if (x > gw) c |= GUARD_RIGHT;
+            if (y < -gw) c |= GUARD_BOTTOM;
+            if (y > gw) c |= GUARD_TOP;
+            codes[codeOffset + i] = c;
+        }
+    }
+
+    // Clips the triangle made of points a, b and c of the packed x, y, z, w array, whose outcodes
+    // are ca, cb and cc, and adds what is left to out in screen space
+    // Returns the number of triangles added
+    public int clipTriangle(float[] clip, int a, int b, int c, int ca, int cb, int cc, int color, TriangleBuffer out) {
+
+        // Every point is outside the same plane, nothing can be seen
+        if ((ca & cb & cc) != 0)
+            return 0;
+
+        // Nothing to clip, it can go straight to the screen
+        int planes = (ca | cb | cc) & CLIP_PLANES;
+        if (planes == 0) {
+            int t = out.add(color);
+            project(clip, a * 4, out, t, 0);
+            project(clip, b * 4, out, t, 1);
+            project(clip, c * 4, out, t, 2);
+            return 1;
+        }
+
+        // Clip against each plane the triangle crosses, the near plane first so w is positive
+        // for the rest
+        System.arraycopy(clip, a * 4, poly, 0, 4);
+        System.arraycopy(clip, b * 4, poly, 4, 4);
+        System.arraycopy(clip, c * 4, poly, 8, 4);
+        int n = 3;
+        for (int plane = NEAR; plane <= GUARD_TOP && n >= 3; plane <<= 1) {
+            if ((planes & plane) != 0)
+                n = clipPolygon(plane, n);
+        }
+        if (n < 3)
+            return 0;
+
+        // Split the polygon into a fan of triangles
+        for (int i = 1; i < n - 1; i++) {
+            int t = out.add(color);
+            project(poly, 0, out, t, 0);
+            project(poly, i * 4, out, t, 1);
+            project(poly, (i + 1) * 4, out, t, 2);
+        }
+        return n - 2;
+    }
+
+    // Clips the n point polygon against a plane, leaving the result in poly
+    // Returns the number of points left
+    private int clipPolygon(int plane, int n) {
+        float[] in = poly, res = next;
+        int m = 0;
+        int prev = (n - 1) * 4;
+        float dPrev = distance(plane, in, prev);
+        for (int i = 0; i < n; i++) {
+            int cur = i * 4;
+            float dCur = distance(plane, in, cur);
+
+            // Add the point where the edge crosses the plane, always worked out from the inside
+            // point so triangles sharing the edge get exactly the same point
+            if ((dPrev >= 0) != (dCur >= 0)) {
+                if (dCur >= 0)
+                    intersect(in, cur, dCur, prev, dPrev, res, m++ * 4);
+                else
+                    intersect(in, prev, dPrev, cur, dCur, res, m++ * 4);
+            }
+            // Keep points on the inside
+            if (dCur >= 0) {
+                System.arraycopy(in, cur, res, m++ * 4, 4);
+            }
+            prev = cur;
+            dPrev = dCur;
+        }
+
+        // The result becomes the polygon for the next plane
+        poly = res;
+        next = in;
+        return m;
+    }
+
+    // Returns how far inside a plane the point at offset i is, negative if outside
+    private float distance(int plane, float[] p, int i) {
+        float x = p[i], y = p[i + 1], z = p[i + 2], w = p[i + 3];
+        switch (plane) {
+            case NEAR: return z;
+            case FAR: return w - z;
+            case GUARD_LEFT: return x + guard * w;
+            case GUARD_RIGHT: return guard * w - x;
+            case GUARD_BOTTOM: return y + guard * w;
+            case GUARD_TOP: return guard * w - y;
+            default: return 0;
+        }
+    }
+
+    // Writes the point where the line from inside point i to outside point o crosses the plane
+    private static void intersect(float[] p, int i, float di, int o, float dOut, float[] out, int at) {
+        float s = di / (di - dOut);
+        for (int k = 0; k < 4; k++)
+            out[at + k] = p[i + k] + (p[o + k] - p[i + k]) * s;
+    }
+
+    // Divides the clip space point at offset i by w, scales it to the screen and stores it
+    // as point c of triangle t of out
+    private void project(float[] p, int i, TriangleBuffer out, int t, int c) {
+        float w = p[i + 3];
+        out.set(t, c, (p[i] / w + 1) * 0.5f * width, (p[i + 1] / w + 1) * 0.5f * height, p[i + 2] / w);
+    }
+}
@@ -0,0 +1,223 @@
+// Package
+package components;
+
+// Java packages
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* DepthPyramid
+ *
+ * A hierarchy of the nearest and farthest depths in the z buffer, for throwing away
+ * triangles and meshes that are hidden behind what has already been drawn without
+ * touching their pixels. Level 0 has a cell for each BLOCK x BLOCK block of pixels the
+ * rasterizer walks, each level above halves the cells in each direction.
+ * Anything whose nearest point is behind the farthest depth of every cell it covers can't
+ * pass the depth test anywhere, so it can be skipped.
+ * The rasterizer marks the blocks it writes to as dirty, and refresh works the dirty blocks
+ * out again from the z buffer and passes the changes up the levels, so a block written by
+ * many triangles is only read back once per refresh. Depths only ever get closer during a
+ * frame, so a cell that hasn't been refreshed yet is only ever too far, never too near,
+ * which keeps every test safe even while raster threads are drawing.
+ *
+*/
+
+public class DepthPyramid {
+
+    // Properties
+    static final int CELL = Rasterizer.BLOCK;               // Width and height in pixels of a level 0 cell
+    static final int CELL_BITS = Integer.numberOfTrailingZeros(CELL);
+    static final float EPSILON = 1e-5f;                     // Room left for rounding in the rasterizer's depth plane
+    float[] zBuffer;                                        // The depths the pyramid is built from
+    int width, height;                                      // Size of the z buffer
+    int levels;                                             // Number of levels, the last one is a single cell
+    int[] cellsX, cellsY;                                   // Cells across and down each level
+    float[][] max;                                          // Farthest depth in each cell of each level
+    float[][] min;                                          // Nearest depth in each cell of each level
+    boolean[] dirty;                                        // Level 0 blocks written since they were last worked out
+    int[] dirtyList;                                        // The dirty blocks, in the order they were marked
+    AtomicInteger dirtyCount = new AtomicInteger();         // Number of blocks in the dirty list, raster threads can add at once
+    boolean[][] stale;                                      // Cells of each level above 0 whose cells below have changed
+    int[] changed, parents;                                 // Cells changed on the level being refit and their parents
+
+    // Constructors
+    public DepthPyramid(float[] zBuffer, int width, int height) {
+        this.zBuffer = zBuffer;
+        this.width = width;
+        this.height = height;
+
+        // Halve the cells until there is only one left
+        int cx = (width + CELL - 1) / CELL, cy = (height + CELL - 1) / CELL;
+        levels = 1;
+        for (int x = cx, y = cy; x > 1 || y > 1; x = (x + 1) / 2, y = (y + 1) / 2)
+            levels++;
+        cellsX = new int[levels];
+        cellsY = new int[levels];
+        max = new float[levels][];
+        min = new float[levels][];
+        for (int l = 0; l < levels; l++) {
+            cellsX[l] = cx;
+            cellsY[l] = cy;
+            max[l] = new float[cx * cy];
+            min[l] = new float[cx * cy];
+            cx = (cx + 1) / 2;
+            cy = (cy + 1) / 2;
+        }
+        int blocks = cellsX[0] * cellsY[0];
+        dirty = new boolean[blocks];
+        dirtyList = new int[blocks];
+        stale = new boolean[levels][];
+        for (int l = 1; l < levels; l++)
+            stale[l] = new boolean[cellsX[l] * cellsY[l]];
+        changed = new int[blocks];
+        parents = new int[blocks];
+    }
+
+    // Methods
+
+    // Set every cell to the depth the z buffer was cleared to
+    public void clear(float depth) {
+        for (int l = 0; l < levels; l++) {
+            Arrays.fill(max[l], depth);
+            Arrays.fill(min[l], depth);
+            if (l > 0)
+                Arrays.fill(stale[l], false);
+        }
+        Arrays.fill(dirty, false);
+        dirtyCount.set(0);
+    }
+
+    // Marks level 0 block bx, by as written to, can be called from any raster thread
+    public void markDirty(int bx, int by) {
+        int c = by * cellsX[0] + bx;
+        if (dirty[c])
+            return;
+        dirty[c] = true;
+        // Two threads can both add the same block, the list is only too short if that happens a lot
+        int n = dirtyCount.getAndIncrement();
+        if (n < dirtyList.length)
+            dirtyList[n] = c;
+    }
+
+    // Returns if level 0 block bx, by has been written to since it was last worked out
+    public boolean isDirty(int bx, int by) {
+        return dirty[by * cellsX[0] + bx];
+    }
+
+    // Works out every dirty block again from the z buffer and passes the changes up the levels
+    // Must not be called while raster threads are drawing
+    public void refresh() {
+        int n = dirtyCount.getAndSet(0);
+        int count = 0;
+        if (n > dirtyList.length) {
+            // The list overflowed, look at every block instead
+            for (int c = 0; c < dirty.length; c++)
+                if (dirty[c] && refreshBlock(c)) changed[count++] = c;
+        } else {
+            for (int i = 0; i < n; i++) {
+                int c = dirtyList[i];
+                if (dirty[c] && refreshBlock(c)) changed[count++] = c;
+            }
+        }
+
+        // Refit the parents of the cells that changed, one level at a time
+        for (int l = 1; l < levels && count > 0; l++) {
+            int w = cellsX[l - 1], pw = cellsX[l];
+            int next = 0;
+            for (int i = 0; i < count; i++) {
+                int c = changed[i];
+                int p = (c / w >> 1) * pw + (c % w >> 1);
+                if (!stale[l][p]) {
+                    stale[l][p] = true;
+                    parents[next++] = p;
+                }
+            }
+            count = 0;
+            for (int i = 0; i < next; i++) {
+                int p = parents[i];
+                stale[l][p] = false;
+                if (refit(l, p % pw, p / pw))
+                    changed[count++] = p;
+            }
+        }
+    }
+
+    // Returns if everything at depth z or farther inside the pixel rectangle x0, y0 to x1, y1
+    // (inclusive) is hidden behind what has already been drawn
+    public boolean isOccluded(int x0, int y0, int x1, int y1, float z) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, width - 1);
+        y1 = Math.min(y1, height - 1);
+        if (x0 > x1 || y0 > y1)
+            return false;
+        z -= EPSILON;
+
+        // Use the finest level where the rectangle covers at most 2 x 2 cells
+        int l = 0;
+        int shift = CELL_BITS;
+        while (l < levels - 1 && ((x1 >> shift) - (x0 >> shift) > 1 || (y1 >> shift) - (y0 >> shift) > 1)) {
+            l++;
+            shift++;
+        }
+
+        float[] m = max[l];
+        int cx = cellsX[l];
+        for (int y = y0 >> shift; y <= y1 >> shift; y++) {
+            for (int x = x0 >> shift; x <= x1 >> shift; x++) {
+                if (z < m[y * cx + x])
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the farthest depth in level 0 block bx, by
+    public float blockMax(int bx, int by) {
+        return max[0][by * cellsX[0] + bx];
+    }
+
+    // Returns the nearest depth in level 0 block bx, by
+    public float blockMin(int bx, int by) {
+        return min[0][by * cellsX[0] + bx];
+    }
+
+    // Works out level 0 block c again from the z buffer, returns false if it didn't change
+    private boolean refreshBlock(int c) {
+        dirty[c] = false;
+        int bx = c % cellsX[0], by = c / cellsX[0];
+        int x0 = bx << CELL_BITS, y0 = by << CELL_BITS;
+        int x1 = Math.min(width, x0 + CELL), y1 = Math.min(height, y0 + CELL);
+        float hi = Float.NEGATIVE_INFINITY, lo = Float.POSITIVE_INFINITY;
+        for (int y = y0; y < y1; y++) {
+            for (int i = y * width + x0, end = y * width + x1; i < end; i++) {
+                float z = zBuffer[i];
+                if (z > hi) hi = z;
+                if (z < lo) lo = z;
+            }
+        }
+        if (max[0][c] == hi && min[0][c] == lo)
+            return false;
+        max[0][c] = hi;
+        min[0][c] = lo;
+        return true;
+    }
+
+    // Works out cell x, y of level l from the cells below it, returns false if it didn't change
+    private boolean refit(int l, int x, int y) {
+        float[] cMax = max[l - 1], cMin = min[l - 1];
+        int cx = cellsX[l - 1], cy = cellsY[l - 1];
+        float hi = Float.NEGATIVE_INFINITY, lo = Float.POSITIVE_INFINITY;
+        for (int j = y * 2; j < Math.min(cy, y * 2 + 2); j++) {
+            for (int i = x * 2; i < Math.min(cx, x * 2 + 2); i++) {
+                hi = Math.max(hi, cMax[j * cx + i]);
+                lo = Math.min(lo, cMin[j * cx + i]);
+            }
+        }
+        int c = y * cellsX[l] + x;
+        if (max[l][c] == hi && min[l][c] == lo)
+            return false;
+        max[l][c] = hi;
+        min[l][c] = lo;
+        return true;
+    }
+}
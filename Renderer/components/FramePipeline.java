@@ -0,0 +1,213 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/* FramePipeline
+ *
+ * Overlaps the stages of consecutive frames on different threads. While the thread calling
+ * submit projects frame N+1, the pipeline's raster thread clears and fills frame N into one
+ * of 3 target images, and the thread calling acquire shows frame N-1 from another.
+ * Projected frames are handed to the raster thread through a bounded lock-free queue and
+ * come back empty through another. A finished image is swapped with the middle one of the 3
+ * in a single atomic exchange, and acquire swaps the middle one for the one it showed when it
+ * holds a newer frame, so neither side ever waits for the other and a frame that is never
+ * shown is simply drawn over.
+ * depth is how many projected frames can be waiting for or being rasterized at once. 1 lets
+ * projecting overlap rasterizing for a frame of latency, each frame more smooths out stages
+ * that take uneven times for another frame of latency. submit waits while they are all in use.
+ * Meshes are projected without occlusion culling's batches, which need the frame's own z
+ * buffer, but the rasterizer still skips hidden triangles with the depth pyramid.
+ * Don't call the renderer's render while the pipeline is running.
+ *
+*/
+
+public class FramePipeline {
+
+    // Properties
+    static final int TARGETS = 3;                           // Images: one being shown, one being drawn, one finished and waiting
+    Renderer renderer;                                      // Projects on the submitting thread and rasterizes on the raster thread
+    int depth;                                              // Projected frames that can be in flight at once
+    SpscQueue<Packet> projected;                            // Frames waiting to be rasterized, submit -> raster thread
+    SpscQueue<Packet> emptied;                              // Frames ready to be projected again, raster thread -> submit
+    static final int FRESH = 4;                             // Set in middle when its image holds a frame acquire hasn't taken
+    BufferedImage[] targets = new BufferedImage[TARGETS];   // The images frames are drawn into
+    AtomicInteger middle = new AtomicInteger(1);            // Index of the image between the raster thread and acquire, plus FRESH
+    int back = 0;                                           // Index of the image being drawn, only used by the raster thread
+    int front = 2;                                          // Index of the image being shown, only used by acquire
+    BufferedImage showing;                                  // Image last given out by acquire, null before the first frame
+    Thread rasterThread;                                    // Thread clearing and rasterizing frames, null if not started
+    volatile Thread waiter;                                 // Thread waiting in submit or drain, woken by the raster thread
+    volatile boolean running;                               // Set to false to stop the raster thread
+    volatile Throwable failure;                             // What stopped the raster thread, if it failed
+    long submitted;                                         // Frames submitted, only used by the submitting thread
+    volatile long rasterized;                               // Frames rasterized, only written by the raster thread
+
+    // Constructors
+    public FramePipeline(Renderer renderer, int depth) {
+        if (depth < 1)
+            throw new IllegalArgumentException("Pipeline depth must be at least 1: " + depth);
+        this.renderer = renderer;
+        this.depth = depth;
+
+        projected = new SpscQueue<>(depth);
+        emptied = new SpscQueue<>(depth);
+        for (int i = 0; i < depth; i++)
+            emptied.offer(new Packet());
+
+        targets[0] = renderer.getImage();
+        for (int i = 1; i < TARGETS; i++)
+            targets[i] = renderer.createTarget();
+    }
+
+    // Methods
+
+    // Starts the raster thread
+    public synchronized void start() {
+        if (rasterThread != null)
+            throw new IllegalStateException("Pipeline already started");
+        running = true;
+        rasterThread = new Thread(this::rasterLoop, "Raster stage");
+        rasterThread.setDaemon(true);
+        rasterThread.start();
+    }
+
+    // Stops the raster thread after the frame it is drawing and waits for it to finish
+    // Frames still waiting to be rasterized are dropped
+    public void stop() throws InterruptedException {
+        running = false;
+        Thread t;
+        synchronized (this) {
+            t = rasterThread;
+            rasterThread = null;
+        }
+        if (t != null && t != Thread.currentThread()) {
+            LockSupport.unpark(t);
+            t.join();
+        }
+    }
+
+    // Projects the scene as seen by the camera and queues it to be rasterized
+    // Waits while depth frames are already in flight
+    public void submit(Scene scene, Camera camera) throws InterruptedException {
+        Packet p = emptied.poll();
+        if (p == null) {
+            waiter = Thread.currentThread();
+            try {
+                while ((p = emptied.poll()) == null)
+                    await();
+            } finally {
+                waiter = null;
+            }
+        }
+
+        // Project on this thread, counting into the frame's own stats
+        p.stats.begin();
+        camera.update();
+        renderer.geometry(scene, camera, p.tris, p.stats);
+
+        // There is always room, there are only depth packets
+        projected.offer(p);
+        submitted++;
+        LockSupport.unpark(rasterThread);
+    }
+
+    // Waits until every submitted frame has been rasterized
+    public void drain() throws InterruptedException {
+        if (rasterized >= submitted)
+            return;
+        waiter = Thread.currentThread();
+        try {
+            while (rasterized < submitted)
+                await();
+        } finally {
+            waiter = null;
+        }
+    }
+
+    // Returns the most recently finished image, which stays the caller's to show until the next call
+    // Returns the same image again if no new one has finished, and null before the first frame
+    // is done. Only call from one thread.
+    public BufferedImage acquire() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & ~FRESH;
+            showing = targets[front];
+        }
+        return showing;
+    }
+
+    // Returns the number of projected frames that can be in flight at once
+    public int getDepth() {
+        return depth;
+    }
+
+    // Parks the waiting thread until the raster thread wakes it, failing if the pipeline has stopped
+    private void await() throws InterruptedException {
+        if (failure != null)
+            throw new IllegalStateException("Rasterizing a frame failed", failure);
+        if (!running)
+            throw new IllegalStateException("Pipeline is not running");
+        LockSupport.park(this);
+        if (Thread.interrupted())
+            throw new InterruptedException();
+    }
+
+    // Rasterizes projected frames into the back image until stopped, run by the raster thread
+    private void rasterLoop() {
+        FrameStats stats = renderer.stats;
+        try {
+            while (running) {
+
+                // Wait for a projected frame
+                Packet p = projected.poll();
+                if (p == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                // Finish the frame the submitting thread started
+                stats.begin();
+                stats.include(p.stats);
+                renderer.setTarget(targets[back]);
+                renderer.clear();
+                TriangleBuffer tris = p.tris;
+                if (!renderer.depthTest) {
+                    long t = System.nanoTime();
+                    tris.sortBackToFront(p.sorted);
+                    tris = p.sorted;
+                    stats.add(FrameStats.SORT, System.nanoTime() - t);
+                }
+                renderer.raster(tris);
+                stats.end();
+
+                // Hand back the frame to be projected again and the image to be shown, taking
+                // the middle image to draw the next frame into
+                emptied.offer(p);
+                back = middle.getAndSet(back | FRESH) & ~FRESH;
+                rasterized++;
+                Thread w = waiter;
+                if (w != null)
+                    LockSupport.unpark(w);
+            }
+        } catch (Throwable e) {
+            failure = e;
+            running = false;
+            Thread w = waiter;
+            if (w != null)
+                LockSupport.unpark(w);
+        }
+    }
+
+    // A frame on its way from the submitting thread to the raster thread
+    static class Packet {
+        TriangleBuffer tris = new TriangleBuffer();         // The projected triangles
+        TriangleBuffer sorted = new TriangleBuffer();       // The triangles sorted back to front, when depth testing is off
+        FrameStats stats = new FrameStats();                // Times and counts of projecting the frame
+    }
+}
@@ -0,0 +1,244 @@
+// Package
+package components;
+
+// Java packages
+import java.awt.Color;
+import java.awt.Graphics;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/* FrameStats
+ *
+ * Records how long each stage of a frame took and how many triangles and pixels went through
+ * it. The renderer fills in the current frame as it draws, then end adds it to a ring of the
+ * last HISTORY frames that averages and percentiles are worked out from.
+ * Only the thread drawing frames calls begin, add and end, every other method can be called
+ * from any thread, which is how JMX clients and the overlay read the numbers.
+ * When the stages of a frame run on different threads, each records into its own FrameStats
+ * and the thread finishing the frame brings the others' numbers in with include.
+ *
+*/
+
+public class FrameStats implements FrameStatsMXBean {
+
+    // Properties
+    public static final int CLEAR = 0;                      // Clearing the frame and z buffers
+    public static final int TRANSFORM = 1;                  // Local and clip space transform of the vertices
+    public static final int CULL = 2;                       // Backface culling and lighting
+    public static final int CLIP = 3;                       // Clipping against the view and projecting to the screen
+    public static final int SORT = 4;                       // Back to front sorting when depth testing is off
+    public static final int RASTER = 5;                     // Filling the triangles
+    public static final int PRESENT = 6;                    // Showing the finished image
+    public static final int FRAME = 7;                      // The whole frame
+    public static final int STAGES = 8;                     // Number of stages
+    static final String[] NAMES = {
+        "Clear", "Transform", "Cull", "Clip", "Sort", "Raster", "Present", "Frame"
+    };
+    static final int HISTORY = 256;                         // Frames kept for averages and percentiles
+
+    // The frame being drawn, only touched by the drawing thread
+    final long[] stage = new long[STAGES];                  // Nanoseconds spent in each stage so far
+    long frameStart;                                        // When the frame was started
+    long meshesIn;                                          // Meshes given to the renderer
+    long meshesCulled;                                      // Meshes found to be out of view from their bounds
+    long meshesOccluded;                                    // Meshes found to be hidden behind ones already drawn
+    long trianglesIn;                                       // Triangles of the meshes in view
+    long trianglesCulled;                                   // Triangles facing away from the camera
+    long trianglesClipped;                                  // Triangles cut or dropped by clipping
+    long trianglesRasterized;                               // Triangles sent to the rasterizer
+    long pixelsWritten;                                     // Pixels written by the rasterizer
+
+    // Finished frames, guarded by this
+    final long[][] history = new long[STAGES][HISTORY];     // Time spent in each stage by the recent frames
+    final long[] ends = new long[HISTORY];                  // When each of the recent frames finished
+    final long[] lastCounts = new long[8];                  // Mesh, triangle and pixel counts of the last frame
+    int next;                                               // Where the next frame goes in the history
+    int filled;                                             // Number of frames in the history
+    long frameCount;                                        // Frames finished since the last reset
+
+    // The overlay's text, only worked out a few times a second so it can be read
+    String[] lines = new String[0];
+    long linesTime;
+
+    // Methods
+
+    // Start recording a new frame
+    public void begin() {
+        Arrays.fill(stage, 0);
+        meshesIn = meshesCulled = meshesOccluded = trianglesIn = trianglesCulled = trianglesClipped = trianglesRasterized = pixelsWritten = 0;
+        frameStart = System.nanoTime();
+    }
+
+    // Add time spent in a stage to the current frame
+    public void add(int s, long nanos) {
+        stage[s] += nanos;
+    }
+
+    // Add the times and counts another FrameStats has recorded for its current frame to this one's
+    // current frame, which is then counted as starting when the other one's did
+    public void include(FrameStats f) {
+        for (int s = 0; s < STAGES; s++)
+            stage[s] += f.stage[s];
+        meshesIn += f.meshesIn;
+        meshesCulled += f.meshesCulled;
+        meshesOccluded += f.meshesOccluded;
+        trianglesIn += f.trianglesIn;
+        trianglesCulled += f.trianglesCulled;
+        trianglesClipped += f.trianglesClipped;
+        trianglesRasterized += f.trianglesRasterized;
+        pixelsWritten += f.pixelsWritten;
+        frameStart = Math.min(frameStart, f.frameStart);
+    }
+
+    // Finish the current frame and add it to the history
+    public synchronized void end() {
+        long now = System.nanoTime();
+        stage[FRAME] = now - frameStart;
+        for (int s = 0; s < STAGES; s++)
+            history[s][next] = stage[s];
+        ends[next] = now;
+        lastCounts[0] = trianglesIn;
+        lastCounts[1] = trianglesCulled;
+        lastCounts[2] = trianglesClipped;
+        lastCounts[3] = trianglesRasterized;
+        lastCounts[4] = pixelsWritten;
+        lastCounts[5] = meshesIn;
+        lastCounts[6] = meshesCulled;
+        lastCounts[7] = meshesOccluded;
+        next = (next + 1) % HISTORY;
+        filled = Math.min(filled + 1, HISTORY);
+        frameCount++;
+    }
+
+    // Add the time spent showing the last finished frame, which happens after the renderer is done with it
+    public synchronized void present(long nanos) {
+        if (filled == 0)
+            return;
+        int last = (next + HISTORY - 1) % HISTORY;
+        history[PRESENT][last] += nanos;
+        history[FRAME][last] += nanos;
+    }
+
+    // Registers the stats with the platform MBean server so JMX clients can read them
+    public ObjectName register(String name) throws JMException {
+        ObjectName on = new ObjectName("components:type=FrameStats,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        return on;
+    }
+
+    @Override
+    public synchronized double getFramesPerSecond() {
+        long since = System.nanoTime() - 1000000000L;
+        int n = 0;
+        for (int i = 0; i < filled; i++)
+            if (ends[i] - since > 0) n++;
+        return n;
+    }
+
+    @Override
+    public synchronized long getFrameCount() { return frameCount; }
+
+    @Override
+    public Map<String, Long> getLastNanos() { return byStage(-1); }
+
+    @Override
+    public Map<String, Long> getMeanNanos() { return byStage(-2); }
+
+    @Override
+    public Map<String, Long> getP50Nanos() { return byStage(50); }
+
+    @Override
+    public Map<String, Long> getP99Nanos() { return byStage(99); }
+
+    @Override
+    public synchronized long getTrianglesIn() { return lastCounts[0]; }
+
+    @Override
+    public synchronized long getTrianglesCulled() { return lastCounts[1]; }
+
+    @Override
+    public synchronized long getTrianglesClipped() { return lastCounts[2]; }
+
+    @Override
+    public synchronized long getTrianglesRasterized() { return lastCounts[3]; }
+
+    @Override
+    public synchronized long getPixelsWritten() { return lastCounts[4]; }
+
+    @Override
+    public synchronized long getMeshesIn() { return lastCounts[5]; }
+
+    @Override
+    public synchronized long getMeshesCulled() { return lastCounts[6]; }
+
+    @Override
+    public synchronized long getMeshesOccluded() { return lastCounts[7]; }
+
+    @Override
+    public synchronized void reset() {
+        next = filled = 0;
+        frameCount = 0;
+        Arrays.fill(lastCounts, 0);
+    }
+
+    // Returns the last (-1), mean (-2) or given percentile of a stage's time over the recent frames
+    public synchronized long nanos(int s, int percentile) {
+        if (filled == 0)
+            return 0;
+        long[] h = history[s];
+        if (percentile == -1)
+            return h[(next + HISTORY - 1) % HISTORY];
+        if (percentile == -2) {
+            long sum = 0;
+            for (int i = 0; i < filled; i++) sum += h[i];
+            return sum / filled;
+        }
+        long[] sorted = Arrays.copyOf(h, filled);
+        Arrays.sort(sorted);
+        int i = (int)Math.ceil(percentile / 100.0 * filled) - 1;
+        return sorted[Math.max(0, Math.min(filled - 1, i))];
+    }
+
+    // Draws the stats over the top of a frame, starting with the top left of the text at x, y
+    // Returns the y of the last line of text
+    public int drawOverlay(Graphics g, int x, int y) {
+
+        // Refresh the text 4 times a second
+        long now = System.nanoTime();
+        if (now - linesTime > 250000000L) {
+            linesTime = now;
+            lines = overlayLines();
+        }
+
+        g.setColor(Color.WHITE);
+        for (int i = 0; i < lines.length; i++)
+            g.drawString(lines[i], x, y += 14);
+        return y;
+    }
+
+    // Works out the overlay's text
+    private synchronized String[] overlayLines() {
+        String[] l = new String[STAGES + 4];
+        l[0] = String.format("FPS: %.0f", getFramesPerSecond());
+        for (int s = 0; s < STAGES; s++)
+            l[s + 1] = String.format("%s: %.2f ms (p50 %.2f, p99 %.2f)", NAMES[s],
+                nanos(s, -1) / 1e6, nanos(s, 50) / 1e6, nanos(s, 99) / 1e6);
+        l[STAGES + 1] = String.format("Triangles: %d in, %d culled, %d clipped, %d drawn",
+            lastCounts[0], lastCounts[1], lastCounts[2], lastCounts[3]);
+        l[STAGES + 2] = String.format("Pixels: %d", lastCounts[4]);
+        l[STAGES + 3] = String.format("Meshes: %d in, %d out of view, %d hidden", lastCounts[5], lastCounts[6], lastCounts[7]);
+        return l;
+    }
+
+    // Returns a map from each stage's name to its last, mean or percentile time
+    private synchronized Map<String, Long> byStage(int percentile) {
+        Map<String, Long> m = new LinkedHashMap<>();
+        for (int s = 0; s < STAGES; s++)
+            m.put(NAMES[s], nanos(s, percentile));
+        return m;
+    }
+}
@@ -0,0 +1,50 @@
+// Package
+package components;
+
+// Java packages
+import java.util.Map;
+
+/* FrameStatsMXBean
+ *
+ * The management interface of FrameStats, shown in JConsole and other JMX clients under
+ * components:type=FrameStats. Stage timings are maps from the stage's name to nanoseconds,
+ * counters are for the last finished frame.
+ *
+*/
+
+public interface FrameStatsMXBean {
+
+    // Frames finished in the last second
+    double getFramesPerSecond();
+
+    // Frames finished since the stats were created or reset
+    long getFrameCount();
+
+    // Time spent in each stage during the last frame
+    Map<String, Long> getLastNanos();
+
+    // Average, median and 99th percentile time spent in each stage over the recent frames
+    Map<String, Long> getMeanNanos();
+    Map<String, Long> getP50Nanos();
+    Map<String, Long> getP99Nanos();
+
+    // Meshes given to the renderer and skipped because their bounds were out of view during the last frame
+    long getMeshesIn();
+    long getMeshesCulled();
+
+    // Meshes skipped because their bounds were hidden behind meshes already drawn during the last frame
+    long getMeshesOccluded();
+
+    // Triangles of the meshes in view, facing away from the camera, cut or dropped by clipping
+    // and sent to the rasterizer during the last frame
+    long getTrianglesIn();
+    long getTrianglesCulled();
+    long getTrianglesClipped();
+    long getTrianglesRasterized();
+
+    // Pixels that passed the depth test and were written during the last frame
+    long getPixelsWritten();
+
+    // Forget every frame recorded so far
+    void reset();
+}
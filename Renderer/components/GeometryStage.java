@@ -0,0 +1,331 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* GeometryStage
+ *
+ * Projects meshes to the screen: transforms their vertices to world and clip space, culls
+ * the triangles facing away from the camera, lights the rest and clips them to the view.
+ * Meshes are queued with add and projected together by flush, which splits the work across
+ * a ForkJoin pool. All the queued vertices are numbered one after another across the meshes
+ * and cut into pieces of SPLIT, and the triangles the same way, so one large mesh is shared
+ * by every worker just like many small ones are. Each piece of triangles writes to its own
+ * buffer and the buffers are added to the output in order, so the triangles come out in
+ * exactly the same order however many threads there are.
+ *
+*/
+
+public class GeometryStage {
+
+    // Properties
+    static final int SPLIT = 4096;                          // Vertices or triangles in each piece of work
+    static final int BATCH_VERTICES = 1 << 18;              // Vertices queued before flush is called by add, bounds the scratch arrays
+    int threads;                                            // Number of workers, 1 projects on the calling thread
+    ForkJoinPool pool;                                      // Workers that project the pieces
+    Clipper clipper;                                        // Clipping settings, each piece has its own copy to clip with
+    FrameStats stats;                                       // Where the counts and timings go
+    TriangleBuffer out;                                     // Where projected triangles are added
+    Mat4 viewProj;                                          // The camera's view followed by the projection
+    Vec3 camera, light;                                     // Camera position and light direction in world space
+    IndexedMesh[] meshes = new IndexedMesh[16];             // Queued meshes
+    Mat4[] transforms = new Mat4[16];                       // Local transform of each queued mesh
+    boolean[] inside = new boolean[16];                     // Whether each queued mesh is known to need no clipping
+    int[] firstVertex = new int[17];                        // Number of queued vertices before each mesh, and in total at the end
+    int[] firstTriangle = new int[17];                      // Number of queued triangles before each mesh, and in total at the end
+    int count;                                              // Number of queued meshes
+    float[] world = new float[0];                           // Queued vertex positions after the local transform
+    float[] clip = new float[0];                            // Queued vertex positions in clip space, x, y, z, w each
+    int[] codes = new int[0];                               // Which clip planes each queued vertex is outside of
+    Piece[] pieces = new Piece[0];                          // Scratch space and output of each piece
+
+    // Constructors
+    public GeometryStage(Clipper clipper, int threads) {
+        this.clipper = clipper;
+        setThreads(threads);
+    }
+
+    // Methods
+
+    // Change the number of workers projecting pieces
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least 1 thread: " + threads);
+
+        // Let the old workers finish up
+        if (pool != null)
+            pool.shutdown();
+
+        this.threads = threads;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    public int getThreads() { return threads; }
+
+    // Start a frame, projected triangles are added to out and counted in stats
+    public void begin(Mat4 viewProj, Vec3 camera, Vec3 light, TriangleBuffer out, FrameStats stats) {
+        this.viewProj = viewProj;
+        this.camera = camera;
+        this.light = light;
+        this.out = out;
+        this.stats = stats;
+        count = 0;
+    }
+
+    // Queue a mesh to be projected with the given local transform
+    // inside means the whole mesh is known to be inside the clipper's guard band, so nothing needs clipping
+    public void add(IndexedMesh m, Mat4 transform, boolean inside) {
+        // Project what is queued first if this mesh would make the scratch arrays too big
+        if (count > 0 && firstVertex[count] + m.vertexCount > BATCH_VERTICES)
+            flush();
+
+        if (count == meshes.length) {
+            meshes = Arrays.copyOf(meshes, count * 2);
+            transforms = Arrays.copyOf(transforms, count * 2);
+            this.inside = Arrays.copyOf(this.inside, count * 2);
+            firstVertex = Arrays.copyOf(firstVertex, count * 2 + 1);
+            firstTriangle = Arrays.copyOf(firstTriangle, count * 2 + 1);
+        }
+        meshes[count] = m;
+        transforms[count] = transform;
+        this.inside[count] = inside;
+        firstVertex[count + 1] = firstVertex[count] + m.vertexCount;
+        firstTriangle[count + 1] = firstTriangle[count] + m.triangleCount;
+        count++;
+    }
+
+    // Returns the number of triangles queued and not yet projected
+    public int queuedTriangles() {
+        return firstTriangle[count];
+    }
+
+    // Projects every queued mesh and adds their triangles to the output in the order they were queued
+    public void flush() {
+        if (count == 0)
+            return;
+
+        // Make sure there is room for the transformed vertices
+        int vertices = firstVertex[count], triangles = firstTriangle[count];
+        if (codes.length < vertices) {
+            world = new float[vertices * 3];
+            clip = new float[vertices * 4];
+            codes = new int[vertices];
+        }
+
+        // On a single thread each stage is done in one piece straight into the output
+        int vertexPieces = pool == null ? 1 : (vertices + SPLIT - 1) / SPLIT;
+        int trianglePieces = pool == null ? 1 : (triangles + SPLIT - 1) / SPLIT;
+        int n = Math.max(vertexPieces, trianglePieces);
+        if (pieces.length < n) {
+            int old = pieces.length;
+            pieces = Arrays.copyOf(pieces, n);
+            for (int i = old; i < n; i++)
+                pieces[i] = new Piece();
+        }
+        for (int i = 0; i < n; i++)
+            pieces[i].reset(clipper);
+
+        // Every vertex has to be transformed before any triangle can use it
+        long t0 = System.nanoTime();
+        if (pool == null)
+            transformVertices(pieces[0], 0, vertices);
+        else if (vertexPieces > 0)
+            pool.invoke(new PieceTask(true, 0, vertexPieces));
+        long t1 = System.nanoTime();
+
+        if (pool == null)
+            projectTriangles(pieces[0], 0, triangles, out);
+        else if (trianglePieces > 0)
+            pool.invoke(new PieceTask(false, 0, trianglePieces));
+
+        // Join the pieces back together in order
+        long culling = 0, clipping = 0;
+        for (int i = 0; i < trianglePieces; i++) {
+            Piece p = pieces[i];
+            if (pool != null)
+                out.addAll(p.out);
+            stats.trianglesCulled += p.culled;
+            stats.trianglesClipped += p.clipped;
+            culling += p.cullNanos;
+            clipping += p.clipNanos;
+        }
+        long t2 = System.nanoTime();
+
+        // The pieces ran at the same time, so split the time taken between culling and
+        // clipping by how long the pieces spent on each
+        long total = Math.max(1, culling + clipping);
+        stats.trianglesIn += triangles;
+        stats.add(FrameStats.TRANSFORM, t1 - t0);
+        stats.add(FrameStats.CULL, (t2 - t1) * culling / total);
+        stats.add(FrameStats.CLIP, (t2 - t1) * clipping / total);
+
+        // Don't hold on to meshes that might be removed from the scene
+        Arrays.fill(meshes, 0, count, null);
+        Arrays.fill(transforms, 0, count, null);
+        count = 0;
+    }
+
+    // Returns the queued mesh that global vertex or triangle index i belongs to, first holds
+    // the index of the first vertex or triangle of each mesh
+    private int meshOf(int[] first, int i) {
+        // Find the last mesh starting at or before i, skipping empty meshes
+        int lo = 0, hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (first[mid] <= i) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    // Transforms the queued vertices from global index from (inclusive) to to (exclusive) to world
+    // and clip space and works out their outcodes
+    private void transformVertices(Piece p, int from, int to) {
+        for (int k = meshOf(firstVertex, from); from < to; k++) {
+            IndexedMesh m = meshes[k];
+            int start = firstVertex[k];
+            int end = Math.min(to, firstVertex[k + 1]);
+            int n = end - from;
+            if (n <= 0)
+                continue;
+
+            // Each vertex is only transformed once, no matter how many triangles use it
+            transforms[k].transformPoints(m.positions, (from - start) * 3, world, from * 3, n);
+            viewProj.transformPoints4(world, from * 3, clip, from * 4, n);
+            if (inside[k])
+                Arrays.fill(codes, from, end, 0);
+            else
+                p.clipper.outcodes(clip, from * 4, codes, from, n);
+            from = end;
+        }
+    }
+
+    // Culls, lights and clips the queued triangles from global index from (inclusive) to to
+    // (exclusive), adding what is left to dest in order
+    private void projectTriangles(Piece p, int from, int to, TriangleBuffer dest) {
+        for (int k = meshOf(firstTriangle, from); from < to; k++) {
+            int start = firstTriangle[k];
+            int end = Math.min(to, firstTriangle[k + 1]);
+            if (end > from)
+                projectTriangles(p, meshes[k], firstVertex[k], from - start, end - start, dest);
+            from = end;
+        }
+    }
+
+    // Culls, lights and clips triangles from (inclusive) to to (exclusive) of mesh m, whose
+    // vertices start at index base of the scratch arrays, adding what is left to dest in order
+    private void projectTriangles(Piece p, IndexedMesh m, int base, int from, int to, TriangleBuffer dest) {
+        long t0 = System.nanoTime();
+        p.ensureCapacity(to - from);
+        int[] visible = p.visible, shade = p.shade, indices = m.indices;
+        float[] world = this.world;
+        Vec3 cam = camera;
+
+        // Loop through the triangles, keeping the ones facing the camera
+        int count = 0;
+        for (int t = from; t < to; t++) {
+
+            // Get the index of each of the triangle's vertices
+            int i0 = (base + indices[t * 3]) * 3, i1 = (base + indices[t * 3 + 1]) * 3, i2 = (base + indices[t * 3 + 2]) * 3;
+
+            // Backface culling
+            // Calculate the normal direction of this triangle
+            float l1x = world[i1] - world[i0], l1y = world[i1 + 1] - world[i0 + 1], l1z = world[i1 + 2] - world[i0 + 2];
+            float l2x = world[i2] - world[i0], l2y = world[i2 + 1] - world[i0 + 1], l2z = world[i2 + 2] - world[i0 + 2];
+            float nx = l1y * l2z - l1z * l2y;
+            float ny = l1z * l2x - l1x * l2z;
+            float nz = l1x * l2y - l1y * l2x;
+            float mag = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+            nx /= mag; ny /= mag; nz /= mag;
+
+            // Only continue if the triangle is facing towards the screen
+            if (nx * (world[i0] - cam.x) +
+                ny * (world[i0 + 1] - cam.y) +
+                nz * (world[i0 + 2] - cam.z) < 0) {
+
+                // Illumination
+                float dp = Math.min(Math.max(nx * light.x + ny * light.y + nz * light.z, 0), 1);
+                visible[count] = t;
+                shade[count++] = Triangle.scaleColor(m.colorOf(t), dp);
+            }
+        }
+        long t1 = System.nanoTime();
+
+        // Clip the visible triangles against the view and project them to the screen
+        Clipper clipper = p.clipper;
+        for (int v = 0; v < count; v++) {
+            int t = visible[v];
+            int i0 = base + indices[t * 3], i1 = base + indices[t * 3 + 1], i2 = base + indices[t * 3 + 2];
+            int c0 = codes[i0], c1 = codes[i1], c2 = codes[i2];
+            // Count the triangles that get dropped or cut, reaching past the screen edges into the guard band is fine
+            if (((c0 | c1 | c2) & Clipper.CLIP_PLANES) != 0 || (c0 & c1 & c2) != 0)
+                p.clipped++;
+            clipper.clipTriangle(clip, i0, i1, i2, c0, c1, c2, shade[v], dest);
+        }
+        long t2 = System.nanoTime();
+
+        p.culled += to - from - count;
+        p.cullNanos += t1 - t0;
+        p.clipNanos += t2 - t1;
+    }
+
+    // Scratch space, output and counts of one piece of work
+    static class Piece {
+        Clipper clipper;                                    // Own copy of the clipper, it clips with scratch polygons
+        TriangleBuffer out = new TriangleBuffer();          // Triangles projected by this piece
+        int[] visible = new int[0];                         // Triangles of a mesh facing the camera
+        int[] shade = new int[0];                           // Lit color of each visible triangle
+        int culled, clipped;                                // Triangles facing away and triangles that needed clipping
+        long cullNanos, clipNanos;                          // Time spent culling and clipping
+
+        // Empty the piece for a new flush, copying the clipper's settings
+        void reset(Clipper settings) {
+            if (clipper == null || clipper.width != settings.width || clipper.height != settings.height)
+                clipper = new Clipper(settings.width, settings.height, settings.guard);
+            clipper.guard = settings.guard;
+            out.clear();
+            culled = clipped = 0;
+            cullNanos = clipNanos = 0;
+        }
+
+        // Make sure there is room for n visible triangles
+        void ensureCapacity(int n) {
+            if (visible.length < n) {
+                visible = new int[n];
+                shade = new int[n];
+            }
+        }
+    }
+
+    // Splits a range of pieces in half until there is one piece left to do
+    @SuppressWarnings("serial")
+    private class PieceTask extends RecursiveAction {
+        boolean vertices;
+        int from, to;
+
+        PieceTask(boolean vertices, int from, int to) { this.vertices = vertices; this.from = from; this.to = to; }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                // An empty range has nothing to do, and halving it would never get anywhere
+                if (to == from)
+                    return;
+                int start = from * SPLIT;
+                if (vertices)
+                    transformVertices(pieces[from], start, Math.min(firstVertex[count], start + SPLIT));
+                else
+                    projectTriangles(pieces[from], start, Math.min(firstTriangle[count], start + SPLIT), pieces[from].out);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PieceTask(vertices, from, mid), new PieceTask(vertices, mid, to));
+        }
+    }
+}
@@ -0,0 +1,249 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/* MeshFile
+ *
+ * Reads and writes IndexedMeshes in a compact binary format, used to cache models that have
+ * already been parsed. The file is a fixed size little endian header followed by the raw
+ * position floats, the index ints and optionally the per triangle colors:
+ *
+ *   0  int   magic "JRMB"          24 int   vertex count
+ *   4  int   version               28 int   triangle count
+ *   8  long  source file size      32 int   mesh color
+ *   16 long  source modified time  36 int   flags (1 = has per triangle colors, 2 = has levels of detail)
+ *                                  40 int   number of levels of detail
+ *                                  44 int   reserved
+ *
+ * Each level of detail follows in order, simplest last, as its vertex count, triangle count
+ * and error, then its positions, indices and colors laid out the same way, so a cached model
+ * comes back with its levels and doesn't have to be simplified again.
+ *
+ * Loading reads each region through one direct buffer and copies it straight into the mesh's
+ * arrays, there is nothing to parse so it runs as fast as the disk can deliver the bytes. The
+ * file isn't memory mapped, so nothing keeps it open once it has been read and a new copy can
+ * always be moved over it.
+ *
+*/
+
+public class MeshFile {
+
+    // Properties
+    static final int MAGIC = 0x424D524A;                    // "JRMB" when read as little endian bytes
+    static final int VERSION = 2;                           // Bumped whenever the layout changes
+    static final int HEADER_SIZE = 48;                      // Bytes before the vertex data
+    static final int HAS_COLORS = 1;                        // Flag set when per triangle colors are stored
+    static final int HAS_LODS = 2;                          // Flag set when the levels of detail were built, even if there are none
+    static final int LEVEL_HEADER_SIZE = 12;                // Bytes before each level's vertex data
+    static final int READ_SIZE = 1 << 20;                   // Bytes read from the file at a time
+
+    // No constructors, just static methods
+
+    // Writes a mesh to a file along with the size and modified time of the file it came from
+    // The mesh is written to a temporary file first so a half written file is never seen
+    public static void write(IndexedMesh m, Path file, long sourceSize, long sourceTime) throws IOException {
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+                // Header
+                b.putInt(MAGIC).putInt(VERSION).putLong(sourceSize).putLong(sourceTime);
+                b.putInt(m.vertexCount).putInt(m.triangleCount).putInt(m.color);
+                b.putInt((m.colors != null ? HAS_COLORS : 0) | (m.lods != null ? HAS_LODS : 0));
+                b.putInt(m.lods != null ? m.lods.length : 0).putInt(0);
+
+                // Vertex data, a buffer at a time, then each level's
+                writeData(ch, b, m);
+                if (m.lods != null) {
+                    for (IndexedMesh l : m.lods) {
+                        if (b.remaining() < LEVEL_HEADER_SIZE)
+                            flush(ch, b);
+                        b.putInt(l.vertexCount).putInt(l.triangleCount).putFloat(l.error);
+                        writeData(ch, b, l);
+                    }
+                }
+
+                b.flip();
+                while (b.hasRemaining()) ch.write(b);
+            }
+
+            // Swap the finished file into place
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Reads a mesh from a file
+    public static IndexedMesh read(Path file) throws IOException {
+        return read(file, -1, -1);
+    }
+
+    // Reads a mesh from a file if it was made from a source file with the given size and modified time
+    // Returns null if the file doesn't exist or was made from a different version of the source
+    public static IndexedMesh readIfCurrent(Path file, long sourceSize, long sourceTime) throws IOException {
+        try {
+            return read(file, sourceSize, sourceTime);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    // Reads the file, a sourceSize of -1 skips checking the source
+    private static IndexedMesh read(Path file, long sourceSize, long sourceTime) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            if (ch.size() < HEADER_SIZE)
+                throw new IOException("Not a mesh file: " + file);
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(ch, h, 0, file);
+
+            // Check the header
+            if (h.getInt(0) != MAGIC || h.getInt(4) != VERSION)
+                throw new IOException("Not a mesh file or from a different version: " + file);
+            if (sourceSize != -1 && (h.getLong(8) != sourceSize || h.getLong(16) != sourceTime))
+                return null;
+
+            int flags = h.getInt(36), levels = h.getInt(40);
+            boolean hasColors = (flags & HAS_COLORS) != 0;
+            if (levels < 0)
+                throw new IOException("Mesh file is the wrong size: " + file);
+
+            // Copy each region out of the file, then each level's
+            ByteBuffer b = ByteBuffer.allocateDirect(READ_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            IndexedMesh m = new IndexedMesh();
+            m.color = h.getInt(32);
+            long offset = readData(ch, b, HEADER_SIZE, m, h.getInt(24), h.getInt(28), hasColors, file);
+            if ((flags & HAS_LODS) != 0) {
+                m.lods = new IndexedMesh[levels];
+                for (int i = 0; i < levels; i++) {
+                    if (ch.size() < offset + LEVEL_HEADER_SIZE)
+                        throw new IOException("Mesh file is the wrong size: " + file);
+                    ByteBuffer lh = h.clear().limit(LEVEL_HEADER_SIZE);
+                    readFully(ch, lh, offset, file);
+                    IndexedMesh l = new IndexedMesh();
+                    l.color = m.color;
+                    l.error = lh.getFloat(8);
+                    offset = readData(ch, b, offset + LEVEL_HEADER_SIZE, l, lh.getInt(0), lh.getInt(4), hasColors, file);
+                    m.lods[i] = l;
+                }
+            }
+            if (ch.size() != offset)
+                throw new IOException("Mesh file is the wrong size: " + file);
+            return m;
+        }
+    }
+
+    // Writes a mesh's positions, indices and colors if it has them through the buffer
+    private static void writeData(FileChannel ch, ByteBuffer b, IndexedMesh m) throws IOException {
+        writeFloats(ch, b, m.positions, m.vertexCount * 3);
+        writeInts(ch, b, m.indices, m.triangleCount * 3);
+        if (m.colors != null)
+            writeInts(ch, b, m.colors, m.triangleCount);
+    }
+
+    // Reads a mesh's positions, indices and colors starting at offset into m through the buffer,
+    // works out its bounds and returns the offset after them
+    private static long readData(FileChannel ch, ByteBuffer b, long offset, IndexedMesh m, int vertexCount, int triangleCount,
+                                 boolean hasColors, Path file) throws IOException {
+        long size = 4L * (vertexCount * 3L + triangleCount * 3L + (hasColors ? triangleCount : 0));
+        if (vertexCount < 0 || triangleCount < 0 || ch.size() < offset + size)
+            throw new IOException("Mesh file is the wrong size: " + file);
+        m.positions = new float[vertexCount * 3];
+        m.vertexCount = vertexCount;
+        m.indices = new int[triangleCount * 3];
+        m.triangleCount = triangleCount;
+        offset = readFloats(ch, b, offset, m.positions, file);
+        offset = readInts(ch, b, offset, m.indices, file);
+        if (hasColors) {
+            m.colors = new int[triangleCount];
+            offset = readInts(ch, b, offset, m.colors, file);
+        }
+        m.computeBounds();
+        return offset;
+    }
+
+    // Reads the file from offset a buffer at a time until the array is full, returns the offset after it
+    private static long readFloats(FileChannel ch, ByteBuffer b, long offset, float[] out, Path file) throws IOException {
+        for (int i = 0; i < out.length; ) {
+            int n = Math.min(out.length - i, b.capacity() / 4);
+            readFully(ch, b.clear().limit(n * 4), offset, file);
+            b.asFloatBuffer().get(out, i, n);
+            i += n;
+            offset += n * 4L;
+        }
+        return offset;
+    }
+
+    // Reads the file from offset a buffer at a time until the array is full, returns the offset after it
+    private static long readInts(FileChannel ch, ByteBuffer b, long offset, int[] out, Path file) throws IOException {
+        for (int i = 0; i < out.length; ) {
+            int n = Math.min(out.length - i, b.capacity() / 4);
+            readFully(ch, b.clear().limit(n * 4), offset, file);
+            b.asIntBuffer().get(out, i, n);
+            i += n;
+            offset += n * 4L;
+        }
+        return offset;
+    }
+
+    // Fills the buffer up to its limit from the file at offset and flips it back to the start
+    private static void readFully(FileChannel ch, ByteBuffer b, long offset, Path file) throws IOException {
+        while (b.hasRemaining()) {
+            int n = ch.read(b, offset + b.position());
+            if (n < 0)
+                throw new IOException("Mesh file is the wrong size: " + file);
+        }
+        b.flip();
+    }
+
+    // Writes count floats through the buffer, writing the buffer to the channel whenever it fills up
+    private static void writeFloats(FileChannel ch, ByteBuffer b, float[] values, int count) throws IOException {
+        for (int i = 0; i < count; ) {
+            if (b.remaining() < 4)
+                flush(ch, b);
+            int n = Math.min(count - i, b.remaining() / 4);
+            b.asFloatBuffer().put(values, i, n);
+            b.position(b.position() + n * 4);
+            i += n;
+        }
+    }
+
+    // Writes count ints through the buffer, writing the buffer to the channel whenever it fills up
+    private static void writeInts(FileChannel ch, ByteBuffer b, int[] values, int count) throws IOException {
+        for (int i = 0; i < count; ) {
+            if (b.remaining() < 4)
+                flush(ch, b);
+            int n = Math.min(count - i, b.remaining() / 4);
+            b.asIntBuffer().put(values, i, n);
+            b.position(b.position() + n * 4);
+            i += n;
+        }
+    }
+
+    // Writes the buffer's contents to the channel and empties it
+    private static void flush(FileChannel ch, ByteBuffer b) throws IOException {
+        b.flip();
+        while (b.hasRemaining()) ch.write(b);
+        b.clear();
+    }
+}
@@ -0,0 +1,59 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+/* MeshInstance
+ *
+ * One copy of a mesh placed in a scene with its own transform. Many instances can share the
+ * same mesh. After changing the transform, call Scene.update so the scene's spatial index
+ * knows where the instance is now.
+ *
+*/
+
+public class MeshInstance {
+
+    // Properties
+    public final IndexedMesh mesh;                          // The mesh drawn by this instance
+    public final Mat4 transform = new Mat4();               // Takes the mesh's vertices to world space
+    Scene scene;                                            // The scene the instance is in, null once removed
+    int id;                                                 // Order the instance was added in, keeps drawing order stable
+    int index;                                              // Position in the scene's list of instances
+    int proxy = AabbTree.NULL;                              // Leaf of the scene's tree, NULL for meshes without bounds
+    float[] bounds = new float[6];                          // World space box, minX, minY, minZ, maxX, maxY, maxZ
+    int lod;                                                // Level of detail last drawn, 0 for the full mesh
+
+    // Constructors
+    MeshInstance(IndexedMesh mesh, Mat4 transform) {
+        this.mesh = mesh;
+        if (transform != null)
+            this.transform.set(transform);
+    }
+
+    // Methods
+
+    // Returns the scene the instance is in, null if it has been removed
+    public Scene getScene() {
+        return scene;
+    }
+
+    // Works out the world space box around the mesh's bounds after the transform
+    // Each axis of the new box is the sum of the smallest and largest contribution of each
+    // local axis, which is exact for the box's corners without transforming all 8 (Arvo's method)
+    void computeBounds() {
+        float[] m = transform.m;
+        float[] lo = { mesh.min.x, mesh.min.y, mesh.min.z };
+        float[] hi = { mesh.max.x, mesh.max.y, mesh.max.z };
+        for (int c = 0; c < 3; c++) {
+            float min = m[12 + c], max = m[12 + c];
+            for (int r = 0; r < 3; r++) {
+                float a = m[r * 4 + c] * lo[r], b = m[r * 4 + c] * hi[r];
+                min += Math.min(a, b);
+                max += Math.max(a, b);
+            }
+            bounds[c] = min;
+            bounds[3 + c] = max;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.util.Arrays;
+
+/* MeshSimplifier
+ *
+ * Builds a chain of simpler versions of a mesh for drawing it when it is far away, by
+ * collapsing edges one at a time, cheapest first (Garland and Heckbert's quadric error metric).
+ * Every vertex keeps a quadric, the sum of the squared distances to the planes of the
+ * triangles around it in the original mesh, so the cost of moving a vertex somewhere is
+ * how far that puts it from the original surface. An edge collapses into the point its two
+ * quadrics agree is best. Open edges get extra planes so holes and borders keep their shape,
+ * and collapses that would flip a triangle or fold the surface onto itself are skipped.
+ * Each level is taken from the same run as the triangle count passes a target, so the whole
+ * chain costs about as much as simplifying the mesh once. A simplifier holds the mesh it is
+ * working on, so use a new instance for each mesh.
+ *
+*/
+
+public class MeshSimplifier {
+
+    // Properties
+    static final double BORDER_WEIGHT = 10;                 // How strongly open edges are kept in place
+    float ratio = 0.5f;                                     // Triangles in each level compared to the level before it
+    int minTriangles = 32;                                  // Stop once a level has this few triangles
+    int maxLevels = 10;                                     // Most levels built for a mesh
+
+    // The mesh being simplified
+    IndexedMesh source;                                     // The mesh the levels are built from
+    float[] pos;                                            // Vertex positions, moved as edges collapse
+    int vertexCount;                                        // Number of vertices after welding
+    int[] tris;                                             // 3 vertex indices for each triangle
+    boolean[] removed;                                      // Triangles that collapsed away
+    int live;                                               // Triangles left
+    double[] quadric;                                       // 10 numbers per vertex, the upper half of its symmetric 4x4 quadric
+    int[] version;                                          // Bumped when a vertex moves or dies, so stale heap entries can be spotted
+    boolean[] dead;                                         // Vertices merged into another vertex
+    int[][] vertTris;                                       // Triangles around each vertex, may include removed triangles
+    int[] vertTriCount;                                     // Number of triangles in each vertex's list
+    int[] mark;                                             // Scratch marks for finding shared neighbours
+    int markStamp;                                          // Current mark value
+    double maxError;                                        // Largest squared error of any collapse so far
+    float[] point = new float[3];                           // Where the edge being looked at collapses to
+
+    // Heap of candidate collapses, cheapest first
+    float[] heapCost = new float[64];
+    int[] heapA = new int[64], heapB = new int[64];         // The edge's vertices
+    int[] heapVa = new int[64], heapVb = new int[64];       // The vertices' versions when the edge was added
+    int heapSize;
+
+    // Constructors
+    public MeshSimplifier() {}
+
+    // ratio is the fraction of triangles each level keeps, minTriangles is where the chain stops
+    public MeshSimplifier(float ratio, int minTriangles) {
+        if (!(ratio > 0 && ratio < 1))
+            throw new IllegalArgumentException("Ratio must be between 0 and 1: " + ratio);
+        this.ratio = ratio;
+        this.minTriangles = Math.max(1, minTriangles);
+    }
+
+    // Methods
+
+    // Builds the chain of simpler levels and stores it in the mesh's lods, returns the mesh
+    // Meshes that are already small enough get an empty chain
+    public IndexedMesh buildLods(IndexedMesh m) {
+        if (!m.hasBounds())
+            m.computeBounds();
+        if (m.triangleCount <= minTriangles) {
+            m.lods = new IndexedMesh[0];
+            return m;
+        }
+
+        init(m);
+        IndexedMesh[] levels = new IndexedMesh[maxLevels];
+        int count = 0;
+        int last = live;
+        while (count < maxLevels && live > minTriangles) {
+            int target = Math.max(minTriangles, (int)(last * ratio));
+            boolean stuck = !collapseTo(target);
+
+            // Keep the level if it got far enough, a level that barely saves anything isn't worth drawing
+            if (live <= last * 0.9f) {
+                levels[count++] = snapshot();
+                last = live;
+            }
+            if (stuck)
+                break;
+        }
+
+        m.lods = Arrays.copyOf(levels, count);
+        source = null;
+        return m;
+    }
+
+    // Collapses the cheapest edges until there are at most target triangles left
+    // Returns false if it ran out of edges that could be collapsed first
+    private boolean collapseTo(int target) {
+        while (live > target) {
+            if (heapSize == 0)
+                return false;
+
+            // Take the cheapest edge, skipping any whose vertices have changed since it was added
+            float cost = heapCost[0];
+            int a = heapA[0], b = heapB[0], va = heapVa[0], vb = heapVb[0];
+            pop();
+            if (dead[a] || dead[b] || version[a] != va || version[b] != vb)
+                continue;
+
+            float[] p = point;
+            target(a, b, p);
+            float x = p[0], y = p[1], z = p[2];
+            if (!canCollapse(a, b, x, y, z))
+                continue;
+            collapse(a, b, x, y, z);
+            maxError = Math.max(maxError, cost);
+        }
+        return true;
+    }
+
+    // Sets up the working copy of the mesh, its quadrics and the heap of edges
+    private void init(IndexedMesh m) {
+        source = m;
+        int n = m.vertexCount;
+
+        // Weld vertices at exactly the same position, so meshes made of separate triangles still collapse
+        // Each vertex is given to the first vertex with its position, and kept vertices are numbered
+        // in the order they first appear
+        int[] remap = weld(m.positions, n);
+        pos = new float[n * 3];
+        vertexCount = 0;
+        for (int v = 0; v < n; v++) {
+            if (remap[v] == v) {
+                System.arraycopy(m.positions, v * 3, pos, vertexCount * 3, 3);
+                remap[v] = vertexCount++;
+            } else
+                remap[v] = remap[remap[v]];
+        }
+
+        tris = new int[m.triangleCount * 3];
+        removed = new boolean[m.triangleCount];
+        for (int i = 0; i < m.triangleCount * 3; i++)
+            tris[i] = remap[m.indices[i]];
+
+        quadric = new double[vertexCount * 10];
+        version = new int[vertexCount];
+        dead = new boolean[vertexCount];
+        mark = new int[vertexCount];
+        vertTriCount = new int[vertexCount];
+        vertTris = new int[vertexCount][];
+        live = 0;
+        maxError = 0;
+        heapSize = 0;
+
+        // Add each triangle's plane to its vertices' quadrics, triangles with repeated vertices are dropped
+        for (int t = 0; t < m.triangleCount; t++) {
+            int a = tris[t * 3], b = tris[t * 3 + 1], c = tris[t * 3 + 2];
+            if (a == b || b == c || a == c) {
+                removed[t] = true;
+                continue;
+            }
+            live++;
+            double[] n3 = normal(a, b, c);
+            double len = Math.sqrt(n3[0] * n3[0] + n3[1] * n3[1] + n3[2] * n3[2]);
+            if (len > 0) {
+                double nx = n3[0] / len, ny = n3[1] / len, nz = n3[2] / len;
+                double d = -(nx * pos[a * 3] + ny * pos[a * 3 + 1] + nz * pos[a * 3 + 2]);
+                addPlane(a, nx, ny, nz, d, 1);
+                addPlane(b, nx, ny, nz, d, 1);
+                addPlane(c, nx, ny, nz, d, 1);
+            }
+            addTri(a, t);
+            addTri(b, t);
+            addTri(c, t);
+        }
+
+        // Sort every triangle's edges so the copies of each edge are next to each other, edges
+        // with only one copy are on a border
+        long[] edges = new long[live * 3];
+        int edgeCount = 0;
+        for (int t = 0; t < m.triangleCount; t++) {
+            if (removed[t]) continue;
+            for (int e = 0; e < 3; e++)
+                edges[edgeCount++] = edgeKey(tris[t * 3 + e], tris[t * 3 + (e + 1) % 3]);
+        }
+        Arrays.sort(edges);
+
+        // Hold borders in place with a plane through each open edge, at right angles to its triangle
+        for (int t = 0; t < m.triangleCount; t++) {
+            if (removed[t]) continue;
+            double[] n3 = normal(tris[t * 3], tris[t * 3 + 1], tris[t * 3 + 2]);
+            for (int e = 0; e < 3; e++) {
+                int a = tris[t * 3 + e], b = tris[t * 3 + (e + 1) % 3];
+                if (!isBorder(edges, edgeKey(a, b)))
+                    continue;
+                double ex = pos[b * 3] - pos[a * 3], ey = pos[b * 3 + 1] - pos[a * 3 + 1], ez = pos[b * 3 + 2] - pos[a * 3 + 2];
+                double px = ey * n3[2] - ez * n3[1], py = ez * n3[0] - ex * n3[2], pz = ex * n3[1] - ey * n3[0];
+                double len = Math.sqrt(px * px + py * py + pz * pz);
+                if (len == 0) continue;
+                px /= len; py /= len; pz /= len;
+                double d = -(px * pos[a * 3] + py * pos[a * 3 + 1] + pz * pos[a * 3 + 2]);
+                addPlane(a, px, py, pz, d, BORDER_WEIGHT);
+                addPlane(b, px, py, pz, d, BORDER_WEIGHT);
+            }
+        }
+
+        // Every edge starts off as a candidate
+        for (int i = 0; i < edgeCount; i++)
+            if (i == 0 || edges[i] != edges[i - 1])
+                push((int)(edges[i] >>> 32), (int)edges[i]);
+    }
+
+    // Returns if collapsing a and b to x, y, z keeps the surface in one piece without flipping any triangles
+    private boolean canCollapse(int a, int b, float x, float y, float z) {
+
+        // The only neighbours a and b can share are the far corners of the triangles on their
+        // edge, any others would pinch the surface into a non manifold shape
+        markStamp++;
+        int shared = 0;
+        for (int i = 0; i < vertTriCount[a]; i++) {
+            int t = vertTris[a][i];
+            if (removed[t]) continue;
+            for (int k = 0; k < 3; k++)
+                mark[tris[t * 3 + k]] = markStamp;
+            if (tris[t * 3] == b || tris[t * 3 + 1] == b || tris[t * 3 + 2] == b)
+                shared++;
+        }
+        int common = 0;
+        markStamp++;
+        for (int i = 0; i < vertTriCount[b]; i++) {
+            int t = vertTris[b][i];
+            if (removed[t]) continue;
+            for (int k = 0; k < 3; k++) {
+                int v = tris[t * 3 + k];
+                if (v != a && v != b && mark[v] == markStamp - 1) {
+                    common++;
+                    mark[v] = markStamp;
+                }
+            }
+        }
+        if (shared == 0 || common != shared)
+            return false;
+
+        return !flips(a, b, x, y, z) && !flips(b, a, x, y, z);
+    }
+
+    // Returns if moving v to x, y, z flips any of its triangles that don't also use other
+    private boolean flips(int v, int other, float x, float y, float z) {
+        for (int i = 0; i < vertTriCount[v]; i++) {
+            int t = vertTris[v][i];
+            if (removed[t]) continue;
+            int a = tris[t * 3], b = tris[t * 3 + 1], c = tris[t * 3 + 2];
+            if (a == other || b == other || c == other) continue;
+
+            double[] before = normal(a, b, c);
+            float ox = pos[v * 3], oy = pos[v * 3 + 1], oz = pos[v * 3 + 2];
+            pos[v * 3] = x; pos[v * 3 + 1] = y; pos[v * 3 + 2] = z;
+            double[] after = normal(a, b, c);
+            pos[v * 3] = ox; pos[v * 3 + 1] = oy; pos[v * 3 + 2] = oz;
+
+            double dot = before[0] * after[0] + before[1] * after[1] + before[2] * after[2];
+            double lb = before[0] * before[0] + before[1] * before[1] + before[2] * before[2];
+            double la = after[0] * after[0] + after[1] * after[1] + after[2] * after[2];
+            // Anything turned more than about 80 degrees counts as a flip
+            if (dot <= 0.17 * Math.sqrt(lb * la))
+                return true;
+        }
+        return false;
+    }
+
+    // Merges b into a and moves a to x, y, z
+    private void collapse(int a, int b, float x, float y, float z) {
+        pos[a * 3] = x; pos[a * 3 + 1] = y; pos[a * 3 + 2] = z;
+        for (int k = 0; k < 10; k++)
+            quadric[a * 10 + k] += quadric[b * 10 + k];
+
+        // Triangles on the edge disappear, the rest of b's triangles move over to a
+        for (int i = 0; i < vertTriCount[b]; i++) {
+            int t = vertTris[b][i];
+            if (removed[t]) continue;
+            int o = t * 3;
+            if (tris[o] == a || tris[o + 1] == a || tris[o + 2] == a) {
+                removed[t] = true;
+                live--;
+                continue;
+            }
+            for (int k = 0; k < 3; k++)
+                if (tris[o + k] == b) tris[o + k] = a;
+            addTri(a, t);
+        }
+        dead[b] = true;
+        vertTris[b] = null;
+        vertTriCount[b] = 0;
+        version[a]++;
+        version[b]++;
+
+        // Drop a's removed triangles, then add each of a's edges back with their new costs
+        int n = 0;
+        int[] list = vertTris[a];
+        for (int i = 0; i < vertTriCount[a]; i++)
+            if (!removed[list[i]]) list[n++] = list[i];
+        vertTriCount[a] = n;
+        markStamp++;
+        for (int i = 0; i < n; i++) {
+            int t = list[i];
+            for (int k = 0; k < 3; k++) {
+                int v = tris[t * 3 + k];
+                if (v != a && mark[v] != markStamp) {
+                    mark[v] = markStamp;
+                    push(a, v);
+                }
+            }
+        }
+    }
+
+    // Works out where edge a, b should collapse to, the point with the least error for both
+    // quadrics if there is one, otherwise the best of the two ends and the middle
+    private void target(int a, int b, float[] out) {
+        double[] q = sum(a, b);
+        double a00 = q[0], a01 = q[1], a02 = q[2], a11 = q[4], a12 = q[5], a22 = q[7];
+        double det = a00 * (a11 * a22 - a12 * a12) - a01 * (a01 * a22 - a12 * a02) + a02 * (a01 * a12 - a11 * a02);
+
+        if (Math.abs(det) > 1e-12) {
+            // Solve for the point where the error's gradient is 0 (Cramer's rule)
+            double bx = -q[3], by = -q[6], bz = -q[8];
+            double x = (bx * (a11 * a22 - a12 * a12) - a01 * (by * a22 - a12 * bz) + a02 * (by * a12 - a11 * bz)) / det;
+            double y = (a00 * (by * a22 - a12 * bz) - bx * (a01 * a22 - a12 * a02) + a02 * (a01 * bz - by * a02)) / det;
+            double z = (a00 * (a11 * bz - by * a12) - a01 * (a01 * bz - by * a02) + bx * (a01 * a12 - a11 * a02)) / det;
+
+            // Keep every level inside the original mesh's box, so the box can be used to cull any of them
+            Vec3 min = source.min, max = source.max;
+            out[0] = (float)Math.min(Math.max(x, min.x), max.x);
+            out[1] = (float)Math.min(Math.max(y, min.y), max.y);
+            out[2] = (float)Math.min(Math.max(z, min.z), max.z);
+            return;
+        }
+
+        float ax = pos[a * 3], ay = pos[a * 3 + 1], az = pos[a * 3 + 2];
+        float bx = pos[b * 3], by = pos[b * 3 + 1], bz = pos[b * 3 + 2];
+        float mx = (ax + bx) * 0.5f, my = (ay + by) * 0.5f, mz = (az + bz) * 0.5f;
+        double ea = error(q, ax, ay, az), eb = error(q, bx, by, bz), em = error(q, mx, my, mz);
+        if (ea <= eb && ea <= em) { out[0] = ax; out[1] = ay; out[2] = az; }
+        else if (eb <= em) { out[0] = bx; out[1] = by; out[2] = bz; }
+        else { out[0] = mx; out[1] = my; out[2] = mz; }
+    }
+
+    // Copies the triangles left into a new mesh, only keeping the vertices they use
+    private IndexedMesh snapshot() {
+        int[] newIndex = new int[vertexCount];
+        Arrays.fill(newIndex, -1);
+        float[] p = new float[live * 3 * 3];
+        int[] idx = new int[live * 3];
+        int[] colors = source.colors == null ? null : new int[live];
+        int vc = 0, tc = 0;
+        for (int t = 0; t < removed.length; t++) {
+            if (removed[t]) continue;
+            for (int k = 0; k < 3; k++) {
+                int v = tris[t * 3 + k];
+                if (newIndex[v] < 0) {
+                    System.arraycopy(pos, v * 3, p, vc * 3, 3);
+                    newIndex[v] = vc++;
+                }
+                idx[tc * 3 + k] = newIndex[v];
+            }
+            if (colors != null)
+                colors[tc] = source.colors[t];
+            tc++;
+        }
+
+        IndexedMesh level = new IndexedMesh(Arrays.copyOf(p, vc * 3), vc, idx, tc);
+        level.color = source.color;
+        level.colors = colors;
+        level.computeBounds();
+        level.error = (float)Math.sqrt(Math.max(0, maxError));
+        return level;
+    }
+
+    // Adds the plane n . p + d = 0 to a vertex's quadric
+    private void addPlane(int v, double nx, double ny, double nz, double d, double weight) {
+        int o = v * 10;
+        quadric[o] += weight * nx * nx; quadric[o + 1] += weight * nx * ny; quadric[o + 2] += weight * nx * nz; quadric[o + 3] += weight * nx * d;
+        quadric[o + 4] += weight * ny * ny; quadric[o + 5] += weight * ny * nz; quadric[o + 6] += weight * ny * d;
+        quadric[o + 7] += weight * nz * nz; quadric[o + 8] += weight * nz * d;
+        quadric[o + 9] += weight * d * d;
+    }
+
+    // Returns the sum of two vertices' quadrics
+    private double[] sum(int a, int b) {
+        double[] q = new double[10];
+        for (int k = 0; k < 10; k++)
+            q[k] = quadric[a * 10 + k] + quadric[b * 10 + k];
+        return q;
+    }
+
+    // Returns the squared distances to a quadric's planes from x, y, z
+    private static double error(double[] q, double x, double y, double z) {
+        return x * x * q[0] + 2 * x * y * q[1] + 2 * x * z * q[2] + 2 * x * q[3]
+             + y * y * q[4] + 2 * y * z * q[5] + 2 * y * q[6]
+             + z * z * q[7] + 2 * z * q[8] + q[9];
+    }
+
+    // Returns the normal of triangle a, b, c scaled by twice its area
+    private double[] normal(int a, int b, int c) {
+        double ux = pos[b * 3] - pos[a * 3], uy = pos[b * 3 + 1] - pos[a * 3 + 1], uz = pos[b * 3 + 2] - pos[a * 3 + 2];
+        double vx = pos[c * 3] - pos[a * 3], vy = pos[c * 3 + 1] - pos[a * 3 + 1], vz = pos[c * 3 + 2] - pos[a * 3 + 2];
+        return new double[] { uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx };
+    }
+
+    // Adds triangle t to vertex v's list
+    private void addTri(int v, int t) {
+        int[] list = vertTris[v];
+        if (list == null)
+            list = vertTris[v] = new int[8];
+        else if (vertTriCount[v] == list.length)
+            list = vertTris[v] = Arrays.copyOf(list, list.length * 2);
+        list[vertTriCount[v]++] = t;
+    }
+
+    // Adds edge a, b to the heap with the cost of collapsing it
+    private void push(int a, int b) {
+        float[] p = point;
+        target(a, b, p);
+        float cost = (float)Math.max(0, error(sum(a, b), p[0], p[1], p[2]));
+
+        if (heapSize == heapCost.length) {
+            int size = heapSize * 2;
+            heapCost = Arrays.copyOf(heapCost, size);
+            heapA = Arrays.copyOf(heapA, size);
+            heapB = Arrays.copyOf(heapB, size);
+            heapVa = Arrays.copyOf(heapVa, size);
+            heapVb = Arrays.copyOf(heapVb, size);
+        }
+
+        // Sift the new entry up to its place
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heapCost[parent] <= cost) break;
+            move(parent, i);
+            i = parent;
+        }
+        heapCost[i] = cost; heapA[i] = a; heapB[i] = b; heapVa[i] = version[a]; heapVb[i] = version[b];
+    }
+
+    // Removes the cheapest entry from the heap
+    private void pop() {
+        heapSize--;
+        if (heapSize == 0)
+            return;
+
+        // Sift the last entry down from the top
+        float cost = heapCost[heapSize];
+        int a = heapA[heapSize], b = heapB[heapSize], va = heapVa[heapSize], vb = heapVb[heapSize];
+        int i = 0;
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && heapCost[child + 1] < heapCost[child]) child++;
+            if (heapCost[child] >= cost) break;
+            move(child, i);
+            i = child;
+        }
+        heapCost[i] = cost; heapA[i] = a; heapB[i] = b; heapVa[i] = va; heapVb[i] = vb;
+    }
+
+    // Copies heap entry from to entry to
+    private void move(int from, int to) {
+        heapCost[to] = heapCost[from];
+        heapA[to] = heapA[from];
+        heapB[to] = heapB[from];
+        heapVa[to] = heapVa[from];
+        heapVb[to] = heapVb[from];
+    }
+
+    // Static Methods
+
+    // Returns for each of the n vertices the first vertex at exactly the same position, itself if there is none
+    // The vertices are sorted by a hash of their position as packed longs, so only vertices in a
+    // run with the same hash need their positions compared
+    private static int[] weld(float[] positions, int n) {
+        long[] keys = new long[n];
+        for (int v = 0; v < n; v++)
+            keys[v] = (long)positionHash(positions, v) << 32 | v;
+        Arrays.sort(keys);
+
+        int[] first = new int[n];
+        for (int i = 0, j; i < n; i = j) {
+            // Find the run with this hash, it is in vertex order so the first match is the earliest vertex
+            j = i + 1;
+            while (j < n && keys[j] >>> 32 == keys[i] >>> 32) j++;
+            for (int k = i; k < j; k++) {
+                int v = (int)keys[k];
+                first[v] = v;
+                for (int l = i; l < k; l++) {
+                    int w = (int)keys[l];
+                    if (first[w] == w && samePosition(positions, v, w)) {
+                        first[v] = w;
+                        break;
+                    }
+                }
+            }
+        }
+        return first;
+    }
+
+    // Returns a hash of vertex v's position, -0 and 0 hash the same
+    private static int positionHash(float[] positions, int v) {
+        long h = Float.floatToIntBits(positions[v * 3] + 0f) * 0x9E3779B97F4A7C15L;
+        h = (h ^ Float.floatToIntBits(positions[v * 3 + 1] + 0f)) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ Float.floatToIntBits(positions[v * 3 + 2] + 0f)) * 0x165667B19E3779F9L;
+        return (int)(h ^ h >>> 32);
+    }
+
+    // Returns if vertices v and w have exactly the same position, -0 and 0 count as the same
+    private static boolean samePosition(float[] positions, int v, int w) {
+        for (int c = 0; c < 3; c++)
+            if (Float.floatToIntBits(positions[v * 3 + c] + 0f) != Float.floatToIntBits(positions[w * 3 + c] + 0f))
+                return false;
+        return true;
+    }
+
+    // Returns if an edge appears only once in the sorted list of edges
+    private static boolean isBorder(long[] edges, long key) {
+        int i = Arrays.binarySearch(edges, key);
+        return (i == 0 || edges[i - 1] != key) && (i == edges.length - 1 || edges[i + 1] != key);
+    }
+
+    // Returns a key for the edge between a and b that is the same whichever way round they are
+    private static long edgeKey(int a, int b) {
+        return a < b ? (long)a << 32 | b : (long)b << 32 | a;
+    }
+}
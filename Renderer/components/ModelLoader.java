@@ -6,10 +6,24 @@ import components.structs.*;
 
 // Java Packages
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -17,110 +31,239 @@ import java.util.stream.Stream;
  * ModelLoader
  * 
  * Reads a .OBJ file to create a mesh of triangles
+ * A binary copy of each model is kept in the cache directory, so a model is only parsed
+ * again when its OBJ file changes
+ * Each model gets a chain of simpler levels of detail built as it is loaded, the cached copy
+ * keeps them so they're only built when the model is parsed
+ * Nothing is kept between loads, so any number of threads can load models at once, and
+ * loadAsync and loadAll spread loading across threads
+ * A big OBJ file is also split up and parsed on several threads at once
+ * loadStreaming hands back a mesh straight away that grows as the file is parsed
 */
 
 public class ModelLoader {
-    
-    // Array of triangles
-    static Triangle[] t = new Triangle[]{new Triangle()};
-    // An array of all vectors in the OBJ file
-    static Vec3[] v;
-    // An arraylist of strings
-    static List<String> vec = new ArrayList<String>(), tri = new ArrayList<String>();
-
-    // No constructors, just a static method
+
+    // Directory the binary copies of models are kept in, null turns off the cache
+    static volatile Path cacheDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "JavaRenderer");
+
+    // Build a chain of simpler levels of detail for each model loaded
+    static volatile boolean buildLods = true;
+
+    // Threads a single big OBJ file is split up for, every file shares the parser's pool of one thread per core
+    static volatile int parseThreads = Runtime.getRuntime().availableProcessors();
+
+    // Threads models are loaded on by loadAsync when it isn't given an executor
+    static final ExecutorService LOADERS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemonThreads("Model loader"));
+
+    // No constructors, just static methods
+
+    // Loads an OBJ file into a Mesh of triangles
     public static Mesh objToMesh(String fname) {
+        // Load the indexed mesh and convert it into triangles
+        return objToIndexedMesh(fname).toMesh();
+    }
+
+    // Loads an OBJ file into an IndexedMesh, vertices shared by faces are only stored once
+    // Prints the error and returns an empty mesh if the file can't be read, use load to get the error instead
+    public static IndexedMesh objToIndexedMesh(String fname) {
         
-        // Open the file into a stream
-        try (Stream<String> stream = Files.lines(Paths.get(fname))) {
-            // Convert the stream to a list
-            List<String> str = stream.collect(Collectors.toList());
-            // Filter the stream to give us lines starting with v
-            vec = str.stream().filter(line -> line.startsWith("v ")).collect(Collectors.toList());
-            // Filter the stream to give us lines starting with f
-            tri = str.stream().filter(line -> line.startsWith("f ")).collect(Collectors.toList());
+        try {
+            return load(Paths.get(fname));
         } catch (IOException e) {
             // Print the error stack trace
             e.printStackTrace();
         }
 
-        // If there are faces listed in the file
-        if (tri.size() > 0) {
-            // If there are vectors listed in the file
-            if (vec.size() > 0) {
-                // Create an empty array with the same size as the lines starting with v
-                v = new Vec3[vec.size()];
-                
-                // Create a new list of triangles
-                List<Triangle> tlist = new ArrayList<Triangle>();
-                // Loop through the length of the vector array
-                for(int i = 0; i < v.length; i++) {
-                    // Turn the string at i into a Vec3 and store it in the array
-                    v[i] = stringToVec(vec.get(i));
-                }
-                // Foreach string in the triangle string list
-                for(String s : tri) {
-                    // Turn the string into an array of triangles
-                    Triangle[] ts = stringToTri(s);
-                    
-                    // Add each triangle to the triangle list
-                    for(int n = 0; n < ts.length; n++)
-                        tlist.add(ts[n]);
+        // Return an empty mesh if the file couldn't be read
+        return new IndexedMesh();
+        
+    }
+
+    // Loads an OBJ file into an IndexedMesh, throwing if it can't be read or parsed
+    public static IndexedMesh load(Path file) throws IOException {
+        return load(file, null);
+    }
+
+    // Starts loading an OBJ file on one of the loader threads, returns a mesh that can be drawn
+    // straight away and grows as the file is parsed (see StreamingMesh)
+    public static StreamingMesh loadStreaming(Path file) {
+        StreamingMesh stream = new StreamingMesh();
+        LOADERS.execute(() -> {
+            try {
+                stream.finish(load(file, stream));
+            } catch (IOException | RuntimeException | Error e) {
+                stream.fail(e);
+            }
+        });
+        return stream;
+    }
+
+    // Starts loading an OBJ file into a Mesh of triangles on one of the loader threads
+    // The future completes with the mesh, or exceptionally with what stopped it loading
+    public static CompletableFuture<Mesh> loadAsync(Path file) {
+        return loadAsync(file, LOADERS);
+    }
+
+    // Starts loading an OBJ file into a Mesh of triangles on the executor
+    public static CompletableFuture<Mesh> loadAsync(Path file, Executor executor) {
+        return loadIndexedAsync(file, executor).thenApply(IndexedMesh::toMesh);
+    }
+
+    // Starts loading an OBJ file into an IndexedMesh on the executor
+    public static CompletableFuture<IndexedMesh> loadIndexedAsync(Path file, Executor executor) {
+        CompletableFuture<IndexedMesh> f = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                f.complete(load(file));
+            } catch (IOException | RuntimeException | Error e) {
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    // Loads every OBJ file in a directory, on one thread per core
+    public static Map<Path, IndexedMesh> loadAll(Path dir) throws IOException {
+        return loadAll(dir, Runtime.getRuntime().availableProcessors());
+    }
+
+    // Loads every OBJ file in a directory with up to maxConcurrency loading at once, returns them
+    // in order of file name. If any fail the first failure is thrown once the rest have finished,
+    // with the others added to it as suppressed exceptions
+    public static Map<Path, IndexedMesh> loadAll(Path dir, int maxConcurrency) throws IOException {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("Need to load at least 1 model at a time: " + maxConcurrency);
+
+        // Find the models
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(f -> f.getFileName().toString().toLowerCase().endsWith(".obj") && Files.isRegularFile(f))
+                .sorted().collect(Collectors.toList());
+        }
+        Map<Path, IndexedMesh> meshes = new LinkedHashMap<>();
+        if (files.isEmpty())
+            return meshes;
+
+        // Each thread takes the next file as soon as it finishes one, so big and small files even out
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(maxConcurrency, files.size()), daemonThreads("Model loader"));
+        try {
+            List<CompletableFuture<IndexedMesh>> loads = new ArrayList<>();
+            for (Path f : files)
+                loads.add(loadIndexedAsync(f, pool));
+
+            IOException failure = null;
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    meshes.put(files.get(i), loads.get(i).join());
+                } catch (CompletionException e) {
+                    IOException x = new IOException("Could not load " + files.get(i), e.getCause());
+                    if (failure == null)
+                        failure = x;
+                    else
+                        failure.addSuppressed(x);
                 }
-                // Turn the triangle list into an array
-                t = tlist.toArray(new Triangle[tlist.size()]);
             }
+            if (failure != null)
+                throw failure;
+            return meshes;
+        } finally {
+            pool.shutdown();
         }
-        
-        // Return a new mesh with the triangle array
-        return new Mesh(t);
-        
     }
-    
-    // Converts a string into a Vec3
-    private static Vec3 stringToVec(String s) {
-        
-        // Split the string using the space char as a delimiter
-        String[] arg = s.split(" ");
-        
-        // Return a new Vec3 using the arguments from the string as the positions
-        return new Vec3(Float.parseFloat(arg[1]), Float.parseFloat(arg[2]), Float.parseFloat(arg[3]));
-        
+
+    // Set the directory to cache models in, null turns off the cache
+    public static void setCacheDirectory(Path dir) {
+        cacheDirectory = dir;
     }
 
-    // Converts a string into an array of triangles
-    private static Triangle[] stringToTri(String s) {
-        
-        // // Split the string using the space char as a delimiter
-        String[] arg = s.split(" ");
-        
-        // Create 3 Vec3s using the index listed in the string
-        // We need to also split this using "/" as the delimiter
-        // as OBJ files also store the vt and vn info for faces
-        // We also have to subtract 1 because the vertex indices start at 1
-        Vec3 v1 = v[Integer.parseInt(arg[1].split("/")[0]) - 1];
-        Vec3 v2 = v[Integer.parseInt(arg[2].split("/")[0]) - 1];
-        Vec3 v3 = v[Integer.parseInt(arg[3].split("/")[0]) - 1];
-        
-        // Declare a new triangle array
-        Triangle[] ts = new Triangle[0];
-        
-        // if the string contains 5 args then it is a quad
-        if (arg.length == 5) {
-            // Get the 4th vector of the quad
-            Vec3 v4 = v[Integer.parseInt(arg[4].split("/")[0]) - 1];
-            // Create 2 triangles to represent the quad using the 4 vectors
-            ts = new Triangle[2];
-            ts[0] = new Triangle(v1, v2, v3);
-            ts[1] = new Triangle(v3, v4, v1);
-        } else {
-            // Otherwise the face is a triangle and we can use 3 vectors
-            ts = new Triangle[1];
-            ts[0] = new Triangle(v1, v2, v3);
+    // Set how many threads a big OBJ file is parsed on, 1 parses every file on the loading thread
+    public static void setParseThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least 1 thread to parse with: " + threads);
+        parseThreads = threads;
+    }
+
+    // Set whether loaded models get a chain of simpler levels of detail
+    public static void setBuildLods(boolean build) {
+        buildLods = build;
+    }
+
+    // Loads an OBJ file into an IndexedMesh, publishing what has been parsed to stream as it goes
+    // if it isn't null. A streamed file is parsed on this thread alone so it arrives in order
+    private static IndexedMesh load(Path file, StreamingMesh stream) throws IOException {
+        // Use the cached copy if there is one, otherwise stream the file through the parser
+        Path dir = cacheDirectory;
+        return dir != null ? loadCached(file, dir, stream) : withLods(parse(file, stream));
+    }
+
+    // Simplifies the model for drawing it far away, unless that's turned off or it already has been
+    private static IndexedMesh withLods(IndexedMesh m) {
+        return buildLods && m.lods == null ? new MeshSimplifier().buildLods(m) : m;
+    }
+
+    // Parses an OBJ file, on several threads unless what has been parsed is published to stream
+    private static IndexedMesh parse(Path file, StreamingMesh stream) throws IOException {
+        if (stream == null)
+            return ObjParser.parseParallel(file, parseThreads);
+        ObjParser p = new ObjParser();
+        p.stream = stream;
+        return p.parse(file);
+    }
+
+    // Loads a model from the cache directory, parsing the OBJ and caching it if the
+    // cached copy is missing or was made from a different version of the file
+    private static IndexedMesh loadCached(Path file, Path dir, StreamingMesh stream) throws IOException {
+
+        // The size and modified time tell us if the file has changed since it was cached
+        BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attr.size(), time = attr.lastModifiedTime().toMillis();
+        Path cache = dir.resolve(cacheName(file));
+
+        // Try the cached copy first, one saved without levels of detail is saved again with them
+        IndexedMesh m = null;
+        try {
+            m = MeshFile.readIfCurrent(cache, size, time);
+            if (m != null && (m.lods != null || !buildLods))
+                return m;
+        } catch (IOException e) {
+            // A broken cache file is just replaced
+            System.err.println("Ignoring mesh cache " + cache + ": " + e.getMessage());
+        }
+
+        // Parse the OBJ and save it along with its levels of detail for next time
+        m = withLods(m != null ? m : parse(file, stream));
+        try {
+            Files.createDirectories(dir);
+            MeshFile.write(m, cache, size, time);
+        } catch (IOException e) {
+            // Not being able to cache the model shouldn't stop it loading
+            System.err.println("Could not cache " + file + ": " + e.getMessage());
+        }
+        return m;
+    }
+
+    // Returns a factory for daemon threads named name 1, name 2 and so on
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + " " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // Returns the cache file name for a model, the file's name followed by a hash of its full path
+    private static String cacheName(Path file) {
+        try {
+            String path = file.toAbsolutePath().normalize().toString();
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(path.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(file.getFileName().toString()).append('-');
+            for (int i = 0; i < 8; i++)
+                name.append(String.format("%02x", hash[i]));
+            return name.append(".mesh").toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-1
+            throw new IllegalStateException(e);
         }
-        
-        // Return the triangle array
-        return ts;
-        
     }
 }
@@ -0,0 +1,480 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/* ObjParser
+ *
+ * Reads the vertices and faces of an OBJ file straight from its bytes into packed arrays.
+ * The file is streamed through a fixed size buffer, so only the mesh itself is held in memory,
+ * and numbers are parsed from the bytes without creating any Strings along the way, apart
+ * from the rare ones that can't be rounded exactly that way, which go to Float.parseFloat.
+ * Faces can have any number of points and are split into a fan of triangles. Indices can be
+ * negative (counted back from the last vertex) and can use any of the v, v/vt, v//vn or v/vt/vn forms.
+ * Lines other than v and f are skipped. A parser holds the mesh it is building, so use a new
+ * instance for each file.
+ * parseParallel splits a big file into chunks that start on a new line and parses each on its
+ * own parser at the same time. Positive indices already point at the right vertex wherever
+ * they are, but negative ones depend on how many vertices came before the chunk, so each chunk
+ * remembers where it put them. Once every chunk is done, adding up the vertex and triangle
+ * counts of the chunks before each one gives where it goes in the mesh, and every chunk is
+ * copied straight into place, fixing up its negative indices on the way.
+ * Every file is parsed on the same pool of one thread per core, so loading many big files at
+ * once doesn't start more threads than there are cores.
+ *
+*/
+
+public class ObjParser {
+
+    // Properties
+    static final int BUFFER_SIZE = 1 << 20;                 // Bytes read from the file at a time
+    static final long PARALLEL_MIN = 1 << 22;               // Files smaller than this are parsed on one thread
+    static final long CHUNK_MAX = 1 << 28;                  // Most bytes parsed by one chunk, mapped at once
+    static final ForkJoinPool PARSERS = new ForkJoinPool(Runtime.getRuntime().availableProcessors());   // Parses the chunks of every file
+    float[] positions = new float[3 * 1024];                // Packed x, y, z of every vertex read so far
+    int vertexCount;                                        // Number of vertices read so far
+    int[] indices = new int[3 * 1024];                      // 3 vertex indices for every triangle read so far
+    int triangleCount;                                      // Number of triangles read so far
+    int[] face = new int[16];                               // The vertex indices of the face being read
+    int line = 1;                                           // Line number being parsed, used in error messages
+    ByteBuffer buf;                                         // Bytes being parsed
+    int pos, end;                                           // Position in the bytes and where to stop
+    boolean chunk;                                          // Parsing part of a file, vertices before it aren't known
+    boolean[] back = new boolean[16];                       // Whether each point of the face counted back from the last vertex
+    int[] relative = new int[0];                            // Where indices counted back from the last vertex went, for a chunk
+    int[] relativeLine = new int[0];                        // Line each of them was on
+    int relativeCount;                                      // Number of them
+    IOException failure;                                    // Why a chunk couldn't be parsed
+    StreamingMesh stream;                                   // Gets what has been read after each buffer, null if nothing draws it while it loads
+
+    // Powers of 10 that can be stored exactly in a double
+    static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Methods
+
+    // Reads a whole OBJ file and returns the mesh
+    public IndexedMesh parse(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate(BUFFER_SIZE);
+
+            // Keep filling the buffer until the end of the file
+            while (ch.read(b) >= 0) {
+
+                // Find the end of the last complete line in the buffer
+                int last = b.position() - 1;
+                while (last >= 0 && b.get(last) != '\n') last--;
+
+                if (last < 0) {
+                    // A single line longer than the buffer, make room for more of it
+                    if (!b.hasRemaining())
+                        b = ByteBuffer.allocate(b.capacity() * 2).put(b.flip());
+                    continue;
+                }
+
+                // Parse the complete lines and move what is left to the start of the buffer
+                parse(b, 0, last + 1);
+                if (stream != null)
+                    stream.publish(positions, vertexCount, indices, triangleCount);
+                b.limit(b.position()).position(last + 1);
+                b.compact();
+            }
+
+            // The last line might not end with a new line
+            parse(b, 0, b.position());
+        }
+        return toMesh();
+    }
+
+    // Parses every line between from and to, the last line should be complete
+    public void parse(ByteBuffer b, int from, int to) throws IOException {
+        buf = b; pos = from; end = to;
+        while (pos < end) {
+            skipSpace();
+            if (pos < end) {
+                byte c = buf.get(pos);
+                if (c == 'v' && isSpace(pos + 1)) {
+                    pos++;
+                    readVertex();
+                } else if (c == 'f' && isSpace(pos + 1)) {
+                    pos++;
+                    readFace();
+                }
+            }
+            skipLine();
+        }
+        buf = null;
+    }
+
+    // Returns a mesh using the vertices and triangles read so far
+    // Fails if a face uses a vertex that was never read
+    public IndexedMesh toMesh() throws IOException {
+        for (int i = 0; i < triangleCount * 3; i++) {
+            if (indices[i] >= vertexCount)
+                throw new IOException("Face uses vertex " + (indices[i] + 1) + " but there are only " + vertexCount);
+        }
+        IndexedMesh m = new IndexedMesh(positions, vertexCount, indices, triangleCount);
+        m.computeBounds();
+        return m;
+    }
+
+    // Reads the x, y and z of a vertex, anything after that (w or colors) is ignored
+    private void readVertex() throws IOException {
+        if (positions.length < (vertexCount + 1) * 3)
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        int v = vertexCount * 3;
+        for (int i = 0; i < 3; i++) {
+            skipSpace();
+            positions[v + i] = readFloat();
+        }
+        vertexCount++;
+    }
+
+    // Reads the points of a face and splits it into triangles
+    private void readFace() throws IOException {
+        int n = 0;
+        while (true) {
+            skipSpace();
+            if (pos >= end || buf.get(pos) == '\n' || buf.get(pos) == '#')
+                break;
+
+            // The vertex index is the first number, negative numbers count back from the last vertex
+            // In a chunk they can go back into earlier chunks, which is only checked once they're known
+            int i = readInt();
+            if (i == 0)
+                throw error("Vertex index 0 in face");
+            boolean counted = i < 0;
+            i = counted ? vertexCount + i : i - 1;
+            if (i < 0 && !chunk)
+                throw error("Face uses a vertex before the first vertex");
+
+            // Skip the texture and normal indices
+            while (pos < end && !isSpace(pos) && buf.get(pos) != '\n') pos++;
+
+            if (n == face.length) {
+                face = Arrays.copyOf(face, n * 2);
+                back = Arrays.copyOf(back, n * 2);
+            }
+            back[n] = counted && chunk;
+            face[n++] = i;
+        }
+        if (n < 3)
+            throw error("Face with less than 3 points");
+
+        // Split the face into a fan of triangles
+        // The first is (0, 1, 2) and the rest are (i, i + 1, 0), which keeps quads split the same
+        // way the old loader split them
+        int tris = n - 2;
+        if (indices.length < (triangleCount + tris) * 3)
+            indices = Arrays.copyOf(indices, Math.max(indices.length * 2, (triangleCount + tris) * 3));
+        int t = triangleCount * 3;
+        indices[t] = face[0]; indices[t + 1] = face[1]; indices[t + 2] = face[2];
+        for (int i = 2; i < n - 1; i++) {
+            t += 3;
+            indices[t] = face[i]; indices[t + 1] = face[i + 1]; indices[t + 2] = face[0];
+        }
+
+        // Remember where the indices that still need the chunk's first vertex added went
+        if (chunk) {
+            t = triangleCount * 3;
+            markBack(t, 0); markBack(t + 1, 1); markBack(t + 2, 2);
+            for (int i = 2; i < n - 1; i++) {
+                t += 3;
+                markBack(t, i); markBack(t + 1, i + 1); markBack(t + 2, 0);
+            }
+        }
+        triangleCount += tris;
+    }
+
+    // Adds index t to the list to fix up if point p of the face counted back from the last vertex
+    private void markBack(int t, int p) {
+        if (!back[p])
+            return;
+        if (relativeCount == relative.length) {
+            relative = Arrays.copyOf(relative, Math.max(16, relativeCount * 2));
+            relativeLine = Arrays.copyOf(relativeLine, relative.length);
+        }
+        relativeLine[relativeCount] = line;
+        relative[relativeCount++] = t;
+    }
+
+    // Copies this chunk's vertices and triangles into the whole mesh, starting at vertex and triangle
+    // Indices counted back from the last vertex get the vertices of the chunks before added
+    private void copyInto(float[] allPositions, int[] allIndices, int vertex, int triangle) {
+        System.arraycopy(positions, 0, allPositions, vertex * 3, vertexCount * 3);
+        int t0 = triangle * 3;
+        System.arraycopy(indices, 0, allIndices, t0, triangleCount * 3);
+        for (int r = 0; r < relativeCount; r++)
+            allIndices[t0 + relative[r]] += vertex;
+
+        // Now every index is final, check they're all vertices of the mesh
+        // Ones before the first vertex were already found while the chunks were added up
+        int vertices = allPositions.length / 3;
+        for (int t = t0; t < t0 + triangleCount * 3; t++) {
+            int i = allIndices[t];
+            if (i >= vertices) {
+                failure = new IOException("Face uses vertex " + (i + 1) + " but there are only " + vertices);
+                return;
+            }
+        }
+        // The chunk's own copy isn't needed anymore
+        positions = null;
+        indices = null;
+    }
+
+    // Reads a whole number
+    private int readInt() throws IOException {
+        boolean negative = false;
+        if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+'))
+            negative = buf.get(pos++) == '-';
+        int start = pos;
+        long value = 0;
+        while (pos < end) {
+            int d = buf.get(pos) - '0';
+            if (d < 0 || d > 9) break;
+            value = value * 10 + d;
+            if (value > Integer.MAX_VALUE)
+                throw error("Number is too big");
+            pos++;
+        }
+        if (pos == start)
+            throw error("Expected a number");
+        return (int)(negative ? -value : value);
+    }
+
+    // Reads a decimal number with an optional exponent, rounded the same as Float.parseFloat
+    private float readFloat() throws IOException {
+        int start = pos;
+        boolean negative = false;
+        if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+'))
+            negative = buf.get(pos++) == '-';
+
+        // Collect up to 18 significant digits, numbers with more are left to Float
+        long mantissa = 0;
+        int digits = 0;
+        long exponent = 0;
+        boolean any = false, dot = false, exact = true;
+        while (pos < end) {
+            byte c = buf.get(pos);
+            if (c >= '0' && c <= '9') {
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) digits++;
+                    if (dot) exponent--;
+                } else
+                    exact = false;
+            } else if (c == '.' && !dot)
+                dot = true;
+            else
+                break;
+            pos++;
+        }
+
+        // Exponent
+        if (any && pos < end && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+            pos++;
+            exponent += readInt();
+        }
+
+        if (!any) {
+            // Could be nan or inf, let Float work it out
+            while (pos < end && !isSpace(pos) && buf.get(pos) != '\n') pos++;
+            if (pos == start)
+                throw error("Expected a number");
+            return parseFloat(start);
+        }
+        if (mantissa == 0 && exact)
+            return negative ? -0f : 0f;
+
+        // A mantissa of at most 2^53 is exact in a double, and so are powers of 10 up to 10^22, so
+        // one multiply or divide gives the correctly rounded double (Clinger's fast path). Rounding
+        // that to a float gives the correctly rounded float too, unless the double lands exactly
+        // halfway between two floats, or outside the range where floats have all their bits
+        if (exact && mantissa <= 1L << 53 && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? mantissa / POW10[(int)-exponent] : mantissa * POW10[(int)exponent];
+            boolean halfway = (Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L;
+            if (!halfway && value >= Float.MIN_NORMAL && value <= Float.MAX_VALUE)
+                return (float)(negative ? -value : value);
+        }
+        return parseFloat(start);
+    }
+
+    // Parses the bytes from start to the current position with Float.parseFloat
+    private float parseFloat(int start) throws IOException {
+        byte[] b = new byte[pos - start];
+        for (int i = 0; i < b.length; i++) b[i] = buf.get(start + i);
+        try {
+            return Float.parseFloat(new String(b, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw error("Expected a number");
+        }
+    }
+
+    // Moves past spaces and tabs (and the \r of a \r\n)
+    private void skipSpace() {
+        while (pos < end && isSpace(pos)) pos++;
+    }
+
+    // Moves to the start of the next line
+    private void skipLine() {
+        while (pos < end && buf.get(pos) != '\n') pos++;
+        pos++;
+        line++;
+    }
+
+    // Returns if the byte at i is a space, tab or \r
+    private boolean isSpace(int i) {
+        if (i >= end) return false;
+        byte c = buf.get(i);
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+
+    // Returns an exception with the current line number
+    private IOException error(String message) {
+        return new LineException(message, line);
+    }
+
+    // Static Methods
+
+    // Reads a whole OBJ file split up for threads threads and returns the same mesh parse would
+    // The chunks are parsed on the shared pool, which other files being parsed at the same time
+    // also use. Small files, and any file with fewer than 2 threads, are just parsed on this thread
+    public static IndexedMesh parseParallel(Path file, int threads) throws IOException {
+        long size = Files.size(file);
+        if (threads < 2 || size < PARALLEL_MIN)
+            return new ObjParser().parse(file);
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            // Split the file into a few chunks per thread so threads that finish early can take
+            // another, and small enough to map. Each one starts at the beginning of a line
+            int chunks = (int)Math.max(threads * 4L, (size + CHUNK_MAX - 1) / CHUNK_MAX);
+            long[] start = new long[chunks + 1];
+            start[chunks] = size;
+            ByteBuffer b = ByteBuffer.allocate(4096);
+            for (int c = 1; c < chunks; c++)
+                start[c] = Math.max(start[c - 1], nextLine(ch, size * c / chunks, b));
+
+            // Parse every chunk on its own parser
+            ObjParser[] parsers = new ObjParser[chunks];
+            PARSERS.invoke(new ChunkTask(0, chunks, c -> {
+                ObjParser p = new ObjParser();
+                p.chunk = true;
+                try {
+                    ByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, start[c], start[c + 1] - start[c]);
+                    p.parse(m, 0, m.limit());
+                } catch (IOException e) {
+                    p.failure = e;
+                }
+                parsers[c] = p;
+            }));
+
+            // Add up the lines, vertices and triangles before each chunk
+            // The first chunk that failed is the error parse would have thrown, but its line
+            // number only counts from the start of the chunk
+            int[] firstVertex = new int[chunks + 1], firstTriangle = new int[chunks + 1];
+            long lines = 0, vertices = 0, triangles = 0;
+            for (int c = 0; c < chunks; c++) {
+                ObjParser p = parsers[c];
+
+                // Now the vertices before the chunk are known, an index counted back past all
+                // of them is the error parse would have stopped at, before anything later in the chunk
+                for (int r = 0; r < p.relativeCount; r++)
+                    if (p.indices[p.relative[r]] + vertices < 0)
+                        throw new LineException("Face uses a vertex before the first vertex", lines + p.relativeLine[r]);
+
+                if (p.failure instanceof LineException) {
+                    LineException e = (LineException)p.failure;
+                    throw new LineException(e.reason, lines + e.line);
+                }
+                if (p.failure != null)
+                    throw p.failure;
+                lines += p.line - 1;
+                vertices += p.vertexCount;
+                triangles += p.triangleCount;
+                if (vertices * 3 > Integer.MAX_VALUE || triangles * 3 > Integer.MAX_VALUE)
+                    throw new IOException("Too many vertices or faces in " + file);
+                firstVertex[c + 1] = (int)vertices;
+                firstTriangle[c + 1] = (int)triangles;
+            }
+
+            // Copy every chunk into its place in the mesh
+            float[] positions = new float[firstVertex[chunks] * 3];
+            int[] indices = new int[firstTriangle[chunks] * 3];
+            PARSERS.invoke(new ChunkTask(0, chunks, c -> parsers[c].copyInto(positions, indices, firstVertex[c], firstTriangle[c])));
+            for (ObjParser p : parsers)
+                if (p.failure != null)
+                    throw p.failure;
+
+            IndexedMesh m = new IndexedMesh(positions, firstVertex[chunks], indices, firstTriangle[chunks]);
+            m.computeBounds();
+            return m;
+        }
+    }
+
+    // Returns where the first line starting at or after byte at of the file begins, using b to read into
+    private static long nextLine(FileChannel ch, long at, ByteBuffer b) throws IOException {
+        // Byte at starts a line if the one before it ends one
+        long p = at - 1;
+        while (true) {
+            b.clear();
+            int n = ch.read(b, p);
+            if (n <= 0)
+                return ch.size();
+            for (int i = 0; i < n; i++)
+                if (b.get(i) == '\n')
+                    return p + i + 1;
+            p += n;
+        }
+    }
+
+    // A parse error on a line, keeping the line apart so chunks can move it to the right line of the file
+    @SuppressWarnings("serial")
+    static class LineException extends IOException {
+        final String reason;                                // What was wrong
+        final long line;                                    // Line it was on
+
+        LineException(String reason, long line) {
+            super(reason + " on line " + line);
+            this.reason = reason;
+            this.line = line;
+        }
+    }
+
+    // Splits a range of chunks in half until there is at most one chunk left to do
+    @SuppressWarnings("serial")
+    private static class ChunkTask extends RecursiveAction {
+        int from, to;
+        IntConsumer work;
+
+        ChunkTask(int from, int to, IntConsumer work) { this.from = from; this.to = to; this.work = work; }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (to > from)
+                    work.accept(from);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ChunkTask(from, mid, work), new ChunkTask(mid, to, work));
+        }
+    }
+}
@@ -0,0 +1,236 @@
+// Package
+package components;
+
+// Project packages
+import components.simd.Simd;
+import components.structs.*;
+
+/* Rasterizer
+ *
+ * Fills screen space triangles into a frame buffer and z buffer using edge functions.
+ * Vertices are snapped to a fixed point grid with SUB_BITS bits of sub pixel precision
+ * and pixels are sampled at their centres. A pixel that lies exactly on an edge is only
+ * filled by the triangle that owns that edge under the top-left rule, so triangles that
+ * share an edge never leave a gap or draw the same pixel twice.
+ * The bounding box is walked in BLOCK x BLOCK pixel blocks, blocks outside the triangle
+ * are skipped and blocks completely inside are filled without testing each pixel.
+ * Rows of blocks that lie across the whole width of the rectangle being drawn are handed to
+ * Simd.drawRow, which tests and fills all 8 pixels of a row at once on CPUs with vectors.
+ * With a depth pyramid, triangles and blocks that are behind everything already drawn are
+ * skipped before any edge or depth tests, and blocks the triangle is completely in front of
+ * are filled without reading the z buffer.
+ * With a clearer, each block's depths are only cleared the first time it is drawn to in a frame.
+ *
+*/
+
+public class Rasterizer {
+
+    // Properties
+    static final int SUB_BITS = 4;                          // Bits of sub pixel precision
+    static final int SUB = 1 << SUB_BITS;                   // Size of one pixel in fixed point units
+    static final int BLOCK = Simd.ROW;                      // Width and height of a block in pixels
+    static final Simd SIMD = Simd.KERNELS;                  // Row kernel, vector or scalar
+    int[] frameBuffer;                                      // The color buffer to draw into, one row after another
+    float[] zBuffer;                                        // The depth buffer to test against, laid out like the frame buffer
+    int width, height;                                      // Size of the buffers
+    boolean depthTest = true;                               // Test pixels against the z buffer, false just overwrites
+    DepthPyramid pyramid;                                   // Nearest and farthest depths of each block, null to not use one
+    Clearer clearer;                                        // Clears each block of the z buffer when it is first drawn to, null if it is already clear
+
+    // Constructors
+    public Rasterizer(int[] frameBuffer, float[] zBuffer, int width, int height) {
+        this.frameBuffer = frameBuffer;
+        this.zBuffer = zBuffer;
+        this.width = width;
+        this.height = height;
+    }
+
+    // Methods
+
+    // Rasterize triangle t of the buffer anywhere on the screen, returns the number of pixels written
+    public int drawTriangle(TriangleBuffer tris, int t) {
+        return drawTriangle(tris, t, 0, 0, width, height);
+    }
+
+    // Rasterize the part of triangle t of the buffer that lies inside the rectangle
+    // minX, minY inclusive and maxX, maxY exclusive, returns the number of pixels written
+    public int drawTriangle(TriangleBuffer tris, int t, int minX, int minY, int maxX, int maxY) {
+
+        // Snap the points to the fixed point grid
+        float[] p = tris.p;
+        int i0 = t * 9;
+        int ax = Math.round(p[i0] * SUB), ay = Math.round(p[i0 + 1] * SUB);
+        int bx = Math.round(p[i0 + 3] * SUB), by = Math.round(p[i0 + 4] * SUB);
+        int cx = Math.round(p[i0 + 6] * SUB), cy = Math.round(p[i0 + 7] * SUB);
+        float az = p[i0 + 2], bz = p[i0 + 5], cz = p[i0 + 8];
+        int color = tris.color[t];
+
+        // Twice the signed area of the snapped triangle
+        long area = (long)(bx - ax) * (cy - ay) - (long)(by - ay) * (cx - ax);
+
+        // A triangle with no area covers no pixels
+        if (area == 0)
+            return 0;
+
+        // Swap two points so the winding is always positive, that way the inside
+        // of every edge is where its edge function is positive
+        if (area < 0) {
+            int tx = bx, ty = by; bx = cx; by = cy; cx = tx; cy = ty;
+            float tz = bz; bz = cz; cz = tz;
+        }
+
+        // Pixel bounding box of the triangle, limited to the given rectangle (inclusive)
+        int x0 = Math.max(minX, Math.min(ax, Math.min(bx, cx)) >> SUB_BITS);
+        int y0 = Math.max(minY, Math.min(ay, Math.min(by, cy)) >> SUB_BITS);
+        int x1 = Math.min(maxX - 1, Math.max(ax, Math.max(bx, cx)) >> SUB_BITS);
+        int y1 = Math.min(maxY - 1, Math.max(ay, Math.max(by, cy)) >> SUB_BITS);
+
+        // Nothing to draw if it is completely outside
+        if (x0 > x1 || y0 > y1)
+            return 0;
+
+        // Nothing to draw if it is behind everything already drawn where it is
+        DepthPyramid hiZ = depthTest ? pyramid : null;
+        float zMin = Math.min(az, Math.min(bz, cz)), zMax = Math.max(az, Math.max(bz, cz));
+        if (hiZ != null && hiZ.isOccluded(x0, y0, x1, y1, zMin))
+            return 0;
+
+        // Edge function for the edge from p to q at pixel (x, y) is e = c + a * x + b * y
+        // Each edge is named after the point opposite it
+        long ea = -(long)(cy - by) * SUB, eb = -(long)(ay - cy) * SUB, ec = -(long)(by - ay) * SUB;
+        long fa = (long)(cx - bx) * SUB, fb = (long)(ax - cx) * SUB, fc = (long)(bx - ax) * SUB;
+        long ga = edgeOrigin(bx, by, cx, cy), gb = edgeOrigin(cx, cy, ax, ay), gc = edgeOrigin(ax, ay, bx, by);
+
+        // Depth is linear in screen space, so it can be described as a plane
+        // z = az + dzdx * (x - ax) + dzdy * (y - ay)
+        float fx = (float)ax / SUB, fy = (float)ay / SUB;
+        float x10 = (float)(bx - ax) / SUB, y10 = (float)(by - ay) / SUB, z10 = bz - az;
+        float x20 = (float)(cx - ax) / SUB, y20 = (float)(cy - ay) / SUB, z20 = cz - az;
+        float det = x10 * y20 - x20 * y10;
+        float dzdx = (z10 * y20 - z20 * y10) / det;
+        float dzdy = (x10 * z20 - x20 * z10) / det;
+
+        // Walk the bounding box in blocks aligned to the buffer
+        int written = 0;
+        for (int by0 = y0 & -BLOCK; by0 <= y1; by0 += BLOCK) {
+            int bMinY = Math.max(by0, y0), bMaxY = Math.min(by0 + BLOCK - 1, y1);
+
+            for (int bx0 = x0 & -BLOCK; bx0 <= x1; bx0 += BLOCK) {
+                int bMinX = Math.max(bx0, x0), bMaxX = Math.min(bx0 + BLOCK - 1, x1);
+
+                // Skip blocks where the triangle is behind everything already drawn
+                if (hiZ != null && zMin - DepthPyramid.EPSILON >= hiZ.blockMax(bx0 / BLOCK, by0 / BLOCK))
+                    continue;
+
+                // Test the corners of the block against each edge
+                // 0 means the block is outside, 1 partly inside, 2 completely inside
+                int sa = blockSide(ga, ea, fa, bMinX, bMinY, bMaxX, bMaxY);
+                if (sa == 0) continue;
+                int sb = blockSide(gb, eb, fb, bMinX, bMinY, bMaxX, bMaxY);
+                if (sb == 0) continue;
+                int sc = blockSide(gc, ec, fc, bMinX, bMinY, bMaxX, bMaxY);
+                if (sc == 0) continue;
+                boolean inside = sa == 2 && sb == 2 && sc == 2;
+
+                // The block's depths may still be from an older frame
+                if (clearer != null)
+                    clearer.touch(bx0 / BLOCK, by0 / BLOCK);
+
+                // A block that is only drawn by this call, hasn't changed since the pyramid was
+                // refreshed and that the triangle is completely in front of passes the depth test
+                // everywhere, so the z buffer doesn't need reading
+                boolean front = hiZ != null && inside && bx0 >= minX && by0 >= minY &&
+                    bx0 + BLOCK <= maxX && by0 + BLOCK <= maxY && !hiZ.isDirty(bx0 / BLOCK, by0 / BLOCK) &&
+                    zMax + DepthPyramid.EPSILON < hiZ.blockMin(bx0 / BLOCK, by0 / BLOCK);
+                int blockStart = written;
+
+                // Hand whole rows of the block to the row kernel if the block is inside the rectangle
+                // from side to side and its edge functions fit in ints, which they always do for
+                // edges that cross the block
+                int bx1 = bx0 + BLOCK - 1;
+                int ma = -1, mb = -1, mc = -1;
+                if (bx0 >= minX && bx1 < maxX) {
+                    ma = edgeMode(ga, ea, fa, bx0, bMinY, bx1, bMaxY);
+                    mb = edgeMode(gb, eb, fb, bx0, bMinY, bx1, bMaxY);
+                    mc = edgeMode(gc, ec, fc, bx0, bMinY, bx1, bMaxY);
+                }
+                if (ma >= 0 && mb >= 0 && mc >= 0) {
+                    for (int y = bMinY; y <= bMaxY; y++) {
+                        // Edges that are inside for the whole block are left at 0
+                        int wa = ma == 0 ? (int)(ga + ea * bx0 + fa * y) : 0;
+                        int wb = mb == 0 ? (int)(gb + eb * bx0 + fb * y) : 0;
+                        int wc = mc == 0 ? (int)(gc + ec * bx0 + fc * y) : 0;
+                        float zRow = az + dzdy * (y + 0.5f - fy);
+                        written += SIMD.drawRow(frameBuffer, zBuffer, y * width + bx0, bx0, color, zRow, dzdx, fx,
+                            wa, ma == 0 ? (int)ea : 0, wb, mb == 0 ? (int)eb : 0, wc, mc == 0 ? (int)ec : 0, depthTest, front);
+                    }
+                }
+                else for (int y = bMinY; y <= bMaxY; y++) {
+                    // Edge functions and depth at the start of this row
+                    long wa = ga + ea * bMinX + fa * y;
+                    long wb = gb + eb * bMinX + fb * y;
+                    long wc = gc + ec * bMinX + fc * y;
+                    float zRow = az + dzdy * (y + 0.5f - fy);
+                    // Index of this row's first pixel in the buffers
+                    int i = y * width + bMinX;
+
+                    for (int x = bMinX; x <= bMaxX; x++, i++, wa += ea, wb += eb, wc += ec) {
+                        // Skip pixels outside any edge, unless the whole block is inside
+                        if (!inside && (wa | wb | wc) < 0)
+                            continue;
+
+                        if (depthTest) {
+                            // Only draw if this point is closer than what has already been drawn
+                            float z = zRow + dzdx * (x + 0.5f - fx);
+                            if (front || z < zBuffer[i]) {
+                                zBuffer[i] = z;
+                                frameBuffer[i] = color;
+                                written++;
+                            }
+                        } else {
+                            frameBuffer[i] = color;
+                            written++;
+                        }
+                    }
+                }
+
+                // Let the pyramid know the block's depths have changed
+                if (hiZ != null && written != blockStart)
+                    hiZ.markDirty(bx0 / BLOCK, by0 / BLOCK);
+            }
+        }
+        return written;
+    }
+
+    // Static Methods
+
+    // Returns the edge function from p to q at the centre of pixel (0, 0)
+    // Edges that aren't top or left edges are moved in by one so pixels exactly on them are left out
+    private static long edgeOrigin(int px, int py, int qx, int qy) {
+        int dx = qx - px, dy = qy - py;
+        int centre = SUB >> 1;
+        long e = (long)dx * (centre - py) - (long)dy * (centre - px);
+        boolean topLeft = dy < 0 || (dy == 0 && dx > 0);
+        return topLeft ? e : e - 1;
+    }
+
+    // Returns 1 if the edge function is at least 0 over the whole pixel rectangle, otherwise 0 if it
+    // fits in an int everywhere in the rectangle and -1 if it doesn't
+    private static int edgeMode(long g, long e, long f, int x0, int y0, int x1, int y1) {
+        long c00 = g + e * x0 + f * y0, c10 = g + e * x1 + f * y0;
+        long c01 = g + e * x0 + f * y1, c11 = g + e * x1 + f * y1;
+        if ((c00 | c10 | c01 | c11) >= 0) return 1;
+        long lo = Math.min(Math.min(c00, c10), Math.min(c01, c11));
+        long hi = Math.max(Math.max(c00, c10), Math.max(c01, c11));
+        return lo >= Integer.MIN_VALUE && hi <= Integer.MAX_VALUE ? 0 : -1;
+    }
+
+    // Returns 0 if the pixel rectangle is outside the edge, 1 if it is split by it and 2 if it is inside
+    private static int blockSide(long g, long e, long f, int x0, int y0, int x1, int y1) {
+        long c00 = g + e * x0 + f * y0, c10 = g + e * x1 + f * y0;
+        long c01 = g + e * x0 + f * y1, c11 = g + e * x1 + f * y1;
+        if ((c00 & c10 & c01 & c11) < 0) return 0;
+        if ((c00 | c10 | c01 | c11) < 0) return 1;
+        return 2;
+    }
+}
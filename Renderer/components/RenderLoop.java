@@ -0,0 +1,128 @@
+// Package
+package components;
+
+// Java packages
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.SwingUtilities;
+
+/* RenderLoop
+ *
+ * Drives a Frame from its own thread. The simulation (animation and camera movement) runs
+ * in fixed steps of 1/60th of a second no matter how fast frames are drawn, and a frame is
+ * only drawn when the previous one has been shown, so no work is spent on repaints that
+ * Swing would throw away. With a target frame rate the thread parks until the next frame
+ * is due instead of spinning, 0 draws frames as fast as possible.
+ *
+*/
+
+public class RenderLoop implements Runnable {
+
+    // Properties
+    public static final int TICKS_PER_SECOND = 60;         // Simulation steps per second
+    static final long TICK_NANOS = 1000000000L / TICKS_PER_SECOND;
+    static final int MAX_TICKS = TICKS_PER_SECOND / 4;      // Most steps caught up on per frame, so a stall doesn't snowball
+    Frame frame;                                            // The panel being drawn
+    volatile int targetFps;                                 // Frames per second to aim for, 0 is uncapped
+    volatile boolean running;                               // Set to false to stop the loop
+    Thread thread;                                          // Thread running the loop, null if not started
+    long accumulator;                                       // Simulation time not yet stepped through
+    int ticks;                                              // Steps to run before drawing the next frame
+
+    // Constructors
+    public RenderLoop(Frame frame, int targetFps) {
+        this.frame = frame;
+        setTargetFps(targetFps);
+    }
+
+    // Methods
+
+    // Starts the loop on a new thread
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException("Render loop already started");
+        running = true;
+        thread = new Thread(this, "Render loop");
+        thread.start();
+    }
+
+    // Stops the loop after the frame being drawn and waits for the thread to finish
+    public void stop() throws InterruptedException {
+        running = false;
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+        }
+        if (t != null && t != Thread.currentThread()) {
+            LockSupport.unpark(t);
+            t.join();
+        }
+    }
+
+    // Change the frame rate to aim for, 0 draws frames as fast as possible
+    public void setTargetFps(int fps) {
+        if (fps < 0)
+            throw new IllegalArgumentException("Target frame rate can't be negative: " + fps);
+        targetFps = fps;
+    }
+
+    // Returns the frame rate being aimed for, 0 if uncapped
+    public int getTargetFps() {
+        return targetFps;
+    }
+
+    // Runs the loop until stop is called
+    @Override
+    public void run() {
+        running = true;
+        long previous = System.nanoTime();
+        long deadline = previous;
+
+        while (running) {
+
+            // Work out how many simulation steps have passed since the last frame
+            long now = System.nanoTime();
+            accumulator += now - previous;
+            previous = now;
+            ticks = (int)Math.min(accumulator / TICK_NANOS, MAX_TICKS);
+            accumulator = ticks == MAX_TICKS ? 0 : accumulator - ticks * TICK_NANOS;
+
+            // Step the simulation and draw on the event thread, so the scene is never
+            // changed while Swing is painting it, then wait until it has been shown
+            try {
+                SwingUtilities.invokeAndWait(this::step);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException("Drawing a frame failed", e.getCause());
+            }
+
+            // Sleep until the next frame is due
+            int fps = targetFps;
+            if (fps > 0) {
+                deadline += 1000000000L / fps;
+                long remaining = deadline - System.nanoTime();
+                if (remaining < -1000000000L / fps) {
+                    // More than a frame behind, start counting again from now instead of rushing to catch up
+                    deadline = System.nanoTime();
+                }
+                // parkNanos can return early, so keep parking until the deadline has passed
+                while (running && (remaining = deadline - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(this, remaining);
+            } else {
+                deadline = System.nanoTime();
+            }
+        }
+    }
+
+    // Runs the simulation steps that are due and draws the frame, called on the event thread
+    // With a frame pipeline this starts the new frame and shows the newest one finished
+    private void step() {
+        for (int i = 0; i < ticks; i++)
+            frame.update();
+        frame.render();
+        frame.paintImmediately(0, 0, frame.getWidth(), frame.getHeight());
+    }
+}
@@ -0,0 +1,444 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/* Renderer
+ *
+ * Draws a scene as seen from a camera into an offscreen frame buffer. Needs no window or
+ * display, so it can be used headless as well as by the Frame panel.
+ * Drawing is split into stages that can also be called one at a time:
+ * clear -> geometry (world, clip space, cull, clip, project) -> raster
+ * The geometry of the meshes in view is projected by a GeometryStage, which shares it out
+ * across threads and gives back the triangles in the same order whatever the thread count.
+ * With occlusion culling on, render draws the meshes nearest first and rasterizes them in
+ * batches as it goes, so a depth pyramid of what has been drawn so far can throw away the
+ * meshes and triangles hidden behind it.
+ *
+*/
+
+public class Renderer {
+
+    // Properties
+    BufferedImage image;                                    // The rendered image, shares its pixels with the frame buffer
+    int[] frameBuffer;                                      // The color information of the frame, one row after another
+    float[] zBuffer;                                        // The depth information of the frame, laid out like the frame buffer
+    DepthPyramid pyramid;                                   // Nearest and farthest depths of each block of the z buffer
+    public boolean depthTest = true;                        // Depth test pixels against the z buffer, false falls back to painter's ordering
+    public boolean wireFrame = false;                       // Draw a wire frame over the filled triangles
+    public boolean occlusionCulling = true;                 // Skip meshes and triangles hidden behind ones already drawn, needs depthTest
+    public boolean partialClear = true;                     // Only clear what the last frame drew into the image, false fills every pixel each frame
+    public float lodTolerance = 1;                          // Pixels a simpler level of a mesh may be off by, 0 always draws the full mesh
+    static final float LOD_HYSTERESIS = 1.5f;               // How far past the switch point a mesh must be before a simpler level is used
+    static final int OCCLUSION_BATCH = 4096;                // Triangles projected before rasterizing them when occlusion culling
+    Rasterizer raster;                                      // Fills triangles into the frame and z buffers
+    Clearer clearer;                                        // Clears the parts of the frame and z buffers that were drawn to
+    TiledRasterizer tiles;                                  // Splits rasterization across screen tiles and threads
+    int width;                                              // Frame buffer's width
+    int height;                                             // Frame buffer's height
+    Mat4 projMat;                                           // The projection matrix for this frame
+    Mat4 viewProj = new Mat4();                             // The camera's view matrix followed by the projection
+    Mat4 localClip = new Mat4();                            // Takes a mesh's own vertices straight to clip space
+    Frustum worldFrustum = new Frustum();                   // The view frustum in world space, for finding instances in view
+    Frustum frustum = new Frustum();                        // The view frustum in a mesh's local space
+    Frustum guardFrustum = new Frustum();                   // The frustum widened to the clipper's guard band
+    Vec3 light = new Vec3(0, 0, -1f).normalized();          // The direction of the light
+    float near = 0.05f;                                     // The z value for the near plane
+    float far = 1000f;                                      // The z value for the far plane
+    Clipper clipper;                                        // Clips triangles to the view and projects them to the screen
+    GeometryStage stage;                                    // Transforms, culls and clips the meshes in view, split across threads
+    TriangleBuffer drawTris = new TriangleBuffer();         // List of triangles to raster
+    TriangleBuffer sortTris = new TriangleBuffer();         // The draw list sorted back to front, swapped with drawTris
+    MeshInstance[] found = new MeshInstance[16];            // Instances the scene found in view this frame
+    boolean[] foundInside = new boolean[16];                // Whether each found instance is completely in view
+    long[] order = new long[16];                            // Found instances' ids and positions, sorted to draw in a stable order
+    int foundCount;                                         // Number of instances found
+    AabbTree.Visitor collect = this::collect;               // Adds each instance the scene finds to the found list
+    FrameStats stats = new FrameStats();                    // Timings and counts of the frames drawn
+
+    // Constructors
+    public Renderer(int width, int height) {
+        // Create the image and use its pixel array as the frame buffer, drawing to the
+        // frame buffer draws straight to the image so there's nothing to copy each frame
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        this.frameBuffer = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        // Create a blank z buffer
+        this.zBuffer = new float[width * height];
+        this.pyramid = new DepthPyramid(zBuffer, width, height);
+        this.clearer = new Clearer(zBuffer, width, height, Color.BLACK.getRGB(), 1000);
+        this.raster = new Rasterizer(frameBuffer, zBuffer, width, height);
+        this.tiles = new TiledRasterizer(raster, 64, Runtime.getRuntime().availableProcessors());
+
+        // The width and height of the frame
+        this.width = width;
+        this.height = height;
+
+        // Create the projection matrix using the given width and height
+        projMat = Mat4.projection(near, far, 90, width, height);
+        clipper = new Clipper(width, height);
+        stage = new GeometryStage(clipper, Runtime.getRuntime().availableProcessors());
+    }
+
+    // Methods
+
+    // Draws the scene as seen by the camera into the frame buffer
+    public void render(Scene scene, Camera camera) {
+
+        stats.begin();
+
+        // Clears the buffer to 0 values
+        clear();
+
+        // Only draw is there is something to draw
+        if (scene.size() > 0) {
+
+            // Drawing process:
+            // project to world -> project to clip space -> cull back faces
+            // -> clip against the view -> project to screen -> raster tris
+            // With occlusion culling, some of the triangles are rasterized as they are projected
+            camera.update();
+            geometry(scene, camera, drawTris, depthTest && occlusionCulling, stats);
+
+            // Without the z buffer the triangles have to be drawn back to front
+            if (!depthTest) {
+                long t = System.nanoTime();
+                drawTris.sortBackToFront(sortTris);
+                swapTris();
+                stats.add(FrameStats.SORT, System.nanoTime() - t);
+            }
+
+            raster(drawTris);
+        }
+
+        stats.end();
+    }
+
+    // Clears the frame buffer to black and the z buffer to the far plane
+    // With partial clears only the blocks drawn the last time this image was the target are filled,
+    // and the z buffer is cleared a block at a time as the rasterizer first draws to each one.
+    // Raster threads can't share a block, so tiles that aren't made of whole blocks clear everything
+    public void clear() {
+        long t = System.nanoTime();
+        boolean partial = partialClear && (tiles.getThreads() == 1 || tiles.getTileSize() % Rasterizer.BLOCK == 0);
+        clearer.begin(frameBuffer, partial);
+        raster.clearer = partial ? clearer : null;
+        pyramid.clear(1000);
+        stats.add(FrameStats.CLEAR, System.nanoTime() - t);
+    }
+
+    // Projects every mesh instance in view to the screen, replacing the triangles in out
+    // Uses the camera's view matrix as it was at its last update
+    public void geometry(Scene scene, Camera camera, TriangleBuffer out) {
+        geometry(scene, camera, out, false, stats);
+    }
+
+    // Projects every mesh instance in view to the screen, replacing the triangles in out, and
+    // records the work in stats instead of the renderer's own
+    // Only touches the geometry stage's state, so it can run on one thread while another clears
+    // and rasterizes the frame before, as long as only one thread projects at a time
+    public void geometry(Scene scene, Camera camera, TriangleBuffer out, FrameStats stats) {
+        geometry(scene, camera, out, false, stats);
+    }
+
+    // Draws the triangles, which must already be clipped to the screen, into the frame buffer
+    public void raster(TriangleBuffer tris) {
+        long t = System.nanoTime();
+
+        // Let the rasterizer know if it should use the z buffer and its depth pyramid
+        raster.depthTest = depthTest;
+        raster.pyramid = occlusionCulling ? pyramid : null;
+
+        // Draw flat shaded triangles, split across the raster threads
+        stats.trianglesRasterized += tris.count;
+        stats.pixelsWritten += tiles.drawTriangles(tris);
+
+        // Draw wire frames over the top of the filled triangles
+        // Lines aren't drawn in blocks, so the next clear has to fill the whole image
+        if (wireFrame) {
+            clearer.touchAll();
+            for (int i = 0; i < tris.count; i++)
+                drawWireFrame(tris, i, Color.white.getRGB());
+        }
+
+        stats.add(FrameStats.RASTER, System.nanoTime() - t);
+    }
+
+    // Returns the image that holds the frame buffer's pixels
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    // Draw into image from now on, its pixels become the frame buffer
+    // Lets several images take turns being drawn to while the others are shown
+    public void setTarget(BufferedImage image) {
+        if (image.getWidth() != width || image.getHeight() != height || image.getType() != BufferedImage.TYPE_INT_RGB)
+            throw new IllegalArgumentException("Target must be a " + width + "x" + height + " TYPE_INT_RGB image");
+        this.image = image;
+        this.frameBuffer = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        raster.frameBuffer = frameBuffer;
+    }
+
+    // Returns a new image that can be used as a target
+    public BufferedImage createTarget() {
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    // Returns the frame buffer, one row of 0xRRGGBB pixels after another
+    // Turn off partialClear before drawing into it directly, or those pixels may not be cleared
+    public int[] getFrameBuffer() {
+        return frameBuffer;
+    }
+
+    // Returns the timings and counts of the frames drawn
+    public FrameStats getStats() {
+        return stats;
+    }
+
+    // Returns the projection matrix, clip space is the camera's view followed by this
+    public Mat4 getProjection() {
+        return projMat;
+    }
+
+    // Returns the frame buffer's width
+    public int getWidth() {
+        return width;
+    }
+
+    // Returns the frame buffer's height
+    public int getHeight() {
+        return height;
+    }
+
+    // Set the number of threads used to rasterize, 1 draws everything on the calling thread
+    public void setRasterThreads(int threads) {
+        tiles.setThreads(threads);
+    }
+
+    // Set the number of threads used to transform, cull and clip, 1 does it all on the calling thread
+    public void setGeometryThreads(int threads) {
+        stage.setThreads(threads);
+    }
+
+    // Set the width and height in pixels of the screen tiles each raster thread works on
+    public void setTileSize(int size) {
+        tiles.setTileSize(size);
+    }
+
+    // Projects every mesh instance in view to the screen, replacing the triangles in out
+    // occlude draws the nearest meshes first and rasterizes the triangles in batches, leaving
+    // the last batch in out, and skips meshes whose box is hidden behind what is already drawn
+    private void geometry(Scene scene, Camera camera, TriangleBuffer out, boolean occlude, FrameStats stats) {
+
+        // Empty the list of triangles
+        out.clear();
+        Mat4.matrixMultiply(camera.view, projMat, viewProj);
+        stage.begin(viewProj, camera.position, light, out, stats);
+
+        // Find the instances in view by walking the scene's tree, most are skipped a whole branch at a time
+        long t = System.nanoTime();
+        foundCount = 0;
+        scene.query(worldFrustum.set(viewProj, 1), collect);
+
+        // The tree's order changes as instances move, draw them in the order they were added
+        // so overlapping triangles always come out the same
+        // Occlusion culling works best with the nearest meshes drawn first, so order them by
+        // the distance to the centre of their box instead
+        if (order.length < foundCount)
+            order = new long[found.length];
+        float[] v = viewProj.m;
+        for (int i = 0; i < foundCount; i++) {
+            MeshInstance inst = found[i];
+            if (occlude) {
+                float[] b = inst.bounds;
+                float w = inst.proxy == AabbTree.NULL ? 0 : ((b[0] + b[3]) * v[3] + (b[1] + b[4]) * v[7] + (b[2] + b[5]) * v[11]) * 0.5f + v[15];
+                order[i] = (long)Float.floatToIntBits(Math.max(w, 0)) << 32 | i;
+            } else
+                order[i] = (long)inst.id << 32 | i;
+        }
+        Arrays.sort(order, 0, foundCount);
+        stats.add(FrameStats.CULL, System.nanoTime() - t);
+
+        stats.meshesIn += scene.size();
+        int drawn = 0, occluded = 0, empty = 0;
+        for (int k = 0; k < foundCount; k++) {
+            int i = (int)order[k];
+            MeshInstance inst = found[i];
+            IndexedMesh m = inst.mesh;
+
+            // A mesh with no triangles has nothing to draw, and nothing to split up between the
+            // geometry threads. That includes a streaming mesh that hasn't published any triangles
+            // yet or couldn't be loaded, it has no bounds either so the tree never culls it
+            if (m.triangleCount == 0) {
+                empty++;
+                continue;
+            }
+
+            // Rasterize what has been gathered so far so the meshes behind it can be skipped
+            if (occlude && stage.queuedTriangles() >= OCCLUSION_BATCH) {
+                stage.flush();
+                raster(out);
+                out.clear();
+            }
+
+            // The tree only tests the instances' loose boxes, test the mesh's own bounds to skip
+            // any that are out of view and not bother clipping ones that are well inside it
+            boolean inside = foundInside[i];
+            if (m.hasBounds() && (!inside || occlude)) {
+                t = System.nanoTime();
+                Mat4.matrixMultiply(inst.transform, viewProj, localClip);
+                int side = inside ? Frustum.INSIDE : frustum.set(localClip, 1).testBox(m.min, m.max);
+                if (side != Frustum.OUTSIDE && !inside)
+                    inside = guardFrustum.set(localClip, clipper.guard).testBox(m.min, m.max) == Frustum.INSIDE;
+
+                // Skip meshes whose box is behind everything drawn where it covers the screen
+                boolean hidden = side != Frustum.OUTSIDE && occlude && boxOccluded(m);
+                stats.add(FrameStats.CULL, System.nanoTime() - t);
+                if (side == Frustum.OUTSIDE)
+                    continue;
+                if (hidden) {
+                    occluded++;
+                    continue;
+                }
+            }
+
+            // Queue the level of detail that suits the mesh's size on the screen to be projected
+            stage.add(selectLod(inst), inst.transform, inside);
+            drawn++;
+        }
+        stage.flush();
+        stats.meshesCulled += scene.size() - drawn - occluded - empty;
+        stats.meshesOccluded += occluded;
+
+        // Don't hold on to instances that might be removed from the scene
+        Arrays.fill(found, 0, foundCount, null);
+    }
+
+    // Returns if the mesh's box, transformed by localClip, is hidden behind what is already in the z buffer
+    // Boxes reaching behind the near plane can't be projected, so they are never hidden
+    private boolean boxOccluded(IndexedMesh m) {
+        float[] c = localClip.m;
+        float minX = Float.POSITIVE_INFINITY, minY = minX, minZ = minX;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = maxX;
+        for (int k = 0; k < 8; k++) {
+            float x = (k & 1) == 0 ? m.min.x : m.max.x;
+            float y = (k & 2) == 0 ? m.min.y : m.max.y;
+            float z = (k & 4) == 0 ? m.min.z : m.max.z;
+            float cw = x * c[3] + y * c[7] + z * c[11] + c[15];
+            float cz = x * c[2] + y * c[6] + z * c[10] + c[14];
+            if (cw <= 0 || cz < 0)
+                return false;
+            float sx = ((x * c[0] + y * c[4] + z * c[8] + c[12]) / cw + 1) * 0.5f * width;
+            float sy = ((x * c[1] + y * c[5] + z * c[9] + c[13]) / cw + 1) * 0.5f * height;
+            minX = Math.min(minX, sx); maxX = Math.max(maxX, sx);
+            minY = Math.min(minY, sy); maxY = Math.max(maxY, sy);
+            minZ = Math.min(minZ, cz / cw);
+        }
+        return pyramid.isOccluded((int)Math.floor(minX), (int)Math.floor(minY), (int)Math.ceil(maxX), (int)Math.ceil(maxY), minZ);
+    }
+
+    // Picks the simplest level of an instance's mesh whose error would cover no more than
+    // lodTolerance pixels, from how big the mesh's bounding sphere is on the screen
+    // A simpler level is only switched to once it would be well under the tolerance, so meshes
+    // near the switch point don't flicker between levels. Every level fits in the full mesh's
+    // box, so culling and clipping decisions made with it still hold.
+    private IndexedMesh selectLod(MeshInstance inst) {
+        IndexedMesh m = inst.mesh;
+        IndexedMesh[] lods = m.lods;
+        if (lods == null || lods.length == 0 || !m.hasBounds() || lodTolerance <= 0 || m.radius == 0)
+            return m;
+
+        // The sphere's centre in world space and its radius scaled by the largest scale of the transform
+        float[] t = inst.transform.m, v = viewProj.m;
+        Vec3 c = m.center;
+        float x = c.x * t[0] + c.y * t[4] + c.z * t[8] + t[12];
+        float y = c.x * t[1] + c.y * t[5] + c.z * t[9] + t[13];
+        float z = c.x * t[2] + c.y * t[6] + c.z * t[10] + t[14];
+        float scale = (float)Math.sqrt(Math.max(t[0] * t[0] + t[1] * t[1] + t[2] * t[2],
+            Math.max(t[4] * t[4] + t[5] * t[5] + t[6] * t[6], t[8] * t[8] + t[9] * t[9] + t[10] * t[10])));
+        float radius = m.radius * scale;
+
+        // Clip space w is the distance in front of the camera, the full mesh is drawn if the camera is inside the sphere
+        float w = x * v[3] + y * v[7] + z * v[11] + v[15];
+        int level = Math.min(inst.lod, lods.length);
+        if (w <= radius)
+            level = 0;
+        else {
+            // Radius of the sphere on the screen in pixels, each level's error scales with it
+            float pixels = radius * projMat.m[5] * height * 0.5f / w;
+            float perUnit = pixels / m.radius;
+            while (level > 0 && lods[level - 1].error * perUnit > lodTolerance)
+                level--;
+            while (level < lods.length && lods[level].error * perUnit * LOD_HYSTERESIS <= lodTolerance)
+                level++;
+        }
+        inst.lod = level;
+        return level == 0 ? m : lods[level - 1];
+    }
+
+    // Adds an instance found by the scene to the found list
+    private void collect(Object data, boolean inside) {
+        if (foundCount == found.length) {
+            found = Arrays.copyOf(found, foundCount * 2);
+            foundInside = Arrays.copyOf(foundInside, foundCount * 2);
+        }
+        found[foundCount] = (MeshInstance)data;
+        foundInside[foundCount++] = inside;
+    }
+
+    // Swap the draw list with the sort list, after sorting has written its output to the sort list
+    private void swapTris() {
+        TriangleBuffer t = drawTris;
+        drawTris = sortTris;
+        sortTris = t;
+    }
+
+    // Draws a line using Bresenham's principles of integer incremental error
+    private void drawLine(int x1, int y1, int x2, int y2, int color) {
+        int dx = Math.abs(x2 - x1);
+        int sx = x1 < x2 ? 1 : -1;
+        int dy = -Math.abs(y2 - y1);
+        int sy = y1 < y2 ? 1 : -1;
+        int err = dx + dy;
+        while(true) {
+            frameBuffer[y1 * width + x1] = color;
+            if (x1 == x2 && y1 == y2) break;
+            int e2 = 2*err;
+            if (e2 >= dy) {
+                err += dy;
+                x1 += sx;
+            }
+            if (e2 < dx) {
+                err += dx;
+                y1 += sy;
+            }
+        }
+    }
+
+    // Draws a wire frame of triangle i into the frame buffer
+    private void drawWireFrame(TriangleBuffer t, int i, int c) {
+
+        // Clamp the values to the frame's bounds
+        float[] p = t.p;
+        int x1, y1, x2, y2, x3, y3;
+        x1 = (int)clamp(p[i * 9], 0, width-1); y1 = (int)clamp(p[i * 9 + 1], 0, height-1);
+        x2 = (int)clamp(p[i * 9 + 3], 0, width-1); y2 = (int)clamp(p[i * 9 + 4], 0, height-1);
+        x3 = (int)clamp(p[i * 9 + 6], 0, width-1); y3 = (int)clamp(p[i * 9 + 7], 0, height-1);
+
+        // Draw lines between the triangle's 3 points
+        drawLine(x1, y1, x2, y2, c);
+        drawLine(x1, y1, x3, y3, c);
+        drawLine(x2, y2, x3, y3, c);
+    }
+
+    // Clamps a given float between min and max values
+    public float clamp(float a, float min, float max) {
+        return Math.min(Math.max(a,min),max);
+    }
+}
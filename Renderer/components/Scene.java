@@ -0,0 +1,128 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* Scene
+ *
+ * The mesh instances to be drawn, any number of them, each with its own transform.
+ * Instances are kept in a dynamic bounding volume tree by their world space bounds, so the
+ * ones in view can be found without looking at the rest. Adding, moving and removing an
+ * instance only touches a few nodes of the tree. An instance of a mesh that had no bounds when
+ * it was added, such as one still loading, goes into the tree once update finds it has them.
+ * Holds no drawing state, so the same scene can be drawn by any number of renderers, as long
+ * as it isn't changed while they draw.
+ *
+*/
+
+public class Scene {
+
+    // Properties
+    MeshInstance[] instances = new MeshInstance[16];        // Every instance in the scene, in no particular order
+    int count = 0;                                          // Total number of instances in the scene
+    int nextId = 0;                                         // Id given to the next instance added
+    AabbTree tree = new AabbTree();                         // The instances with bounds, by their world space box
+    ArrayList<MeshInstance> unbounded = new ArrayList<>();  // Instances of meshes without bounds, always drawn
+
+    // Methods
+
+    // Add an instance of a mesh to the scene with no transform
+    public MeshInstance add(IndexedMesh m) {
+        return add(m, null);
+    }
+
+    // Convert a mesh of triangles to an indexed mesh and add an instance of it to the scene
+    public MeshInstance add(Mesh m) {
+        return add(IndexedMesh.fromMesh(m), null);
+    }
+
+    // Add an instance of a mesh to the scene, the transform is copied into the instance
+    public MeshInstance add(IndexedMesh m, Mat4 transform) {
+        MeshInstance inst = new MeshInstance(m, transform);
+        inst.scene = this;
+        inst.id = nextId++;
+
+        // Grow the list of instances if it is full
+        if (count == instances.length)
+            instances = Arrays.copyOf(instances, count * 2);
+        inst.index = count;
+        instances[count++] = inst;
+
+        if (m.hasBounds()) {
+            inst.computeBounds();
+            float[] b = inst.bounds;
+            inst.proxy = tree.insert(b[0], b[1], b[2], b[3], b[4], b[5], inst);
+        } else
+            unbounded.add(inst);
+        return inst;
+    }
+
+    // Remove an instance from the scene, the last instance in the list takes its place
+    public void remove(MeshInstance inst) {
+        checkOwner(inst);
+        if (inst.proxy != AabbTree.NULL)
+            tree.remove(inst.proxy);
+        else
+            unbounded.remove(inst);
+
+        // Move the last instance into the removed instance's place
+        count--;
+        MeshInstance last = instances[count];
+        instances[inst.index] = last;
+        last.index = inst.index;
+        instances[count] = null;
+
+        inst.scene = null;
+        inst.proxy = AabbTree.NULL;
+    }
+
+    // Let the scene know an instance's transform has changed
+    // Cheap when it has only moved a little, the tree is only changed when it leaves its old box
+    public void update(MeshInstance inst) {
+        checkOwner(inst);
+        if (inst.proxy == AabbTree.NULL) {
+            // Start testing the instance against the view once its mesh has bounds
+            if (!inst.mesh.hasBounds())
+                return;
+            unbounded.remove(inst);
+            inst.computeBounds();
+            float[] b = inst.bounds;
+            inst.proxy = tree.insert(b[0], b[1], b[2], b[3], b[4], b[5], inst);
+            return;
+        }
+        inst.computeBounds();
+        float[] b = inst.bounds;
+        tree.move(inst.proxy, b[0], b[1], b[2], b[3], b[4], b[5]);
+    }
+
+    // Visits every instance that might be inside the frustum, which must be in world space
+    // inside is true for instances whose bounds are known to be completely inside it
+    public void query(Frustum f, AabbTree.Visitor v) {
+        tree.query(f, v);
+        for (int i = 0; i < unbounded.size(); i++)
+            v.visit(unbounded.get(i), false);
+    }
+
+    // Returns the instance at index i, indices change when instances are removed
+    public MeshInstance get(int i) {
+        if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException("No instance at " + i + ", scene has " + count);
+        return instances[i];
+    }
+
+    // Returns the number of instances in the scene
+    public int size() {
+        return count;
+    }
+
+    // Fails if the instance isn't in this scene
+    private void checkOwner(MeshInstance inst) {
+        if (inst.scene != this)
+            throw new IllegalArgumentException("Instance isn't in this scene");
+    }
+}
@@ -0,0 +1,147 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.util.concurrent.CompletableFuture;
+
+/* StreamingMesh
+ *
+ * A mesh that grows while its model is still loading, so it can be drawn straight away.
+ * The loader parses into arrays only it writes to and every so often publishes how many
+ * vertices and triangles are ready. The counts are volatile and written after everything
+ * they cover, so a thread that reads them also sees every vertex and index below them. The
+ * loader only ever writes past the counts and grows its arrays by copying them, so nothing
+ * that was published changes afterwards, and neither side ever waits for the other.
+ * The thread that draws the mesh calls refresh between frames, which points the mesh at the
+ * newest published arrays and grows its box around the new vertices. Once the model has
+ * loaded, refresh swaps in the whole mesh with its exact bounds and levels of detail.
+ * Until the first triangles are published, or for good if the model can't be loaded, the
+ * mesh has no triangles and no bounds, and the renderer skips it.
+ *
+*/
+
+public class StreamingMesh {
+
+    // Properties
+    final IndexedMesh mesh = new IndexedMesh();             // What is drawn, only changed by refresh
+    final CompletableFuture<IndexedMesh> loaded = new CompletableFuture<>();   // Completes with the whole mesh once it has loaded
+    volatile float[] positions = new float[0];              // Loader's vertex positions, written before the counts
+    volatile int[] indices = new int[0];                    // Loader's triangle indices, written before the counts
+    volatile int vertices;                                  // Vertices ready to draw
+    volatile int triangles;                                 // Triangles ready to draw, written last, they only use ready vertices
+    int checked;                                            // Triangles the loader has found only use vertices read before them
+    boolean finished;                                       // Whether refresh has swapped in the whole mesh, or given up on it
+
+    // Methods
+
+    // Publishes the first vertexCount vertices and triangleCount triangles read so far, called by the loader
+    // The arrays can be longer, and the loader can keep adding past the counts, but must never
+    // change what is before them
+    public void publish(float[] positions, int vertexCount, int[] indices, int triangleCount) {
+        // A face can use a vertex further down the file, only the triangles before the first one
+        // like that can be drawn yet
+        int t = checked;
+        for (; t < triangleCount; t++) {
+            int i = t * 3;
+            if (indices[i] >= vertexCount || indices[i + 1] >= vertexCount || indices[i + 2] >= vertexCount)
+                break;
+        }
+        checked = t;
+
+        // Arrays first and the triangle count last, refresh reads them the other way round
+        this.positions = positions;
+        this.indices = indices;
+        this.vertices = vertexCount;
+        this.triangles = t;
+    }
+
+    // Hands over the whole mesh once the model has loaded, called by the loader
+    public void finish(IndexedMesh m) {
+        loaded.complete(m);
+    }
+
+    // Gives up on the model, called by the loader if it can't be loaded
+    public void fail(Throwable e) {
+        loaded.completeExceptionally(e);
+    }
+
+    // Brings the mesh up to date with what the loader has published, returns if it changed
+    // Call from the thread that draws the mesh, between frames
+    public boolean refresh() {
+        if (finished)
+            return false;
+
+        // Swap in the whole mesh once it's there, or draw nothing if it couldn't be loaded
+        if (loaded.isDone()) {
+            finished = true;
+            IndexedMesh whole = loaded.isCompletedExceptionally() ? new IndexedMesh() : loaded.join();
+            if (!whole.hasBounds())
+                whole.computeBounds();
+            mesh.positions = whole.positions;
+            mesh.vertexCount = whole.vertexCount;
+            mesh.indices = whole.indices;
+            mesh.triangleCount = whole.triangleCount;
+            mesh.color = whole.color;
+            mesh.colors = whole.colors;
+            mesh.min.set(whole.min);
+            mesh.max.set(whole.max);
+            mesh.center.set(whole.center);
+            mesh.radius = whole.radius;
+            mesh.lods = whole.lods;
+            mesh.error = whole.error;
+            return true;
+        }
+
+        // Triangles first, the vertices they use and the arrays holding both were written before it
+        int t = triangles;
+        if (t == mesh.triangleCount)
+            return false;
+        int v = vertices;
+        float[] p = positions;
+        int[] idx = indices;
+
+        // Grow the box around the new vertices, the sphere just holds the box until the exact
+        // one comes with the whole mesh
+        float minX = Float.POSITIVE_INFINITY, minY = minX, minZ = minX;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+        if (mesh.hasBounds()) {
+            minX = mesh.min.x; minY = mesh.min.y; minZ = mesh.min.z;
+            maxX = mesh.max.x; maxY = mesh.max.y; maxZ = mesh.max.z;
+        }
+        for (int i = mesh.vertexCount * 3; i < v * 3; i += 3) {
+            float x = p[i], y = p[i + 1], z = p[i + 2];
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+            if (z < minZ) minZ = z;
+            if (z > maxZ) maxZ = z;
+        }
+        if (v > 0) {
+            mesh.min.set(minX, minY, minZ);
+            mesh.max.set(maxX, maxY, maxZ);
+            mesh.center.set((minX + maxX) * 0.5f, (minY + maxY) * 0.5f, (minZ + maxZ) * 0.5f);
+            float dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+            mesh.radius = (float)Math.sqrt(dx * dx + dy * dy + dz * dz) * 0.5f * 1.0001f;
+        }
+
+        mesh.positions = p;
+        mesh.vertexCount = v;
+        mesh.indices = idx;
+        mesh.triangleCount = t;
+        return true;
+    }
+
+    // Returns the mesh to draw, it grows each time refresh finds more of the model
+    public IndexedMesh getMesh() {
+        return mesh;
+    }
+
+    // Returns a future that completes with the whole mesh, or with what stopped it loading
+    public CompletableFuture<IndexedMesh> whenLoaded() {
+        return loaded.copy();
+    }
+}
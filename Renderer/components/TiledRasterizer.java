@@ -0,0 +1,177 @@
+// Package
+package components;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* TiledRasterizer
+ *
+ * Splits the screen into square tiles and rasterizes them in parallel on a ForkJoin pool.
+ * Triangles are first binned into every tile their bounding box touches, then each tile
+ * draws its own bin in the original triangle order, clipped to the tile's rectangle.
+ * A pixel only ever belongs to one tile so workers never share any part of the frame
+ * or z buffer, and the result is exactly the same as drawing on a single thread.
+ * If the rasterizer has a depth pyramid it is refreshed after the tiles are drawn, or every
+ * REFRESH triangles when drawing on a single thread.
+ *
+*/
+
+public class TiledRasterizer {
+
+    // Properties
+    static final int REFRESH = 256;                         // Triangles drawn on a single thread between depth pyramid refreshes
+    Rasterizer raster;                                      // Rasterizer that does the drawing
+    int width, height;                                      // Size of the buffers
+    int tileSize;                                           // Width and height of a tile in pixels
+    int tilesX, tilesY;                                     // Number of tiles across and down the screen
+    int[][] bins = new int[0][];                            // Indices of the triangles touching each tile
+    int[] binCounts = new int[0];                           // Number of triangles in each bin
+    long[] tilePixels = new long[0];                        // Pixels written by each tile this frame
+    int threads;                                            // Number of workers, 1 draws on the calling thread
+    ForkJoinPool pool;                                      // Workers used to draw the tiles
+    TriangleBuffer tris;                                    // Triangles being drawn this frame
+
+    // Constructors
+    public TiledRasterizer(Rasterizer raster, int tileSize, int threads) {
+        this.raster = raster;
+        this.width = raster.width;
+        this.height = raster.height;
+        setTileSize(tileSize);
+        setThreads(threads);
+    }
+
+    // Methods
+
+    // Change the size of the tiles, a multiple of the rasterizer's block size works best
+    public void setTileSize(int tileSize) {
+        if (tileSize < 1)
+            throw new IllegalArgumentException("Tile size must be at least 1 pixel: " + tileSize);
+
+        this.tileSize = tileSize;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+
+        // Start with empty bins, they grow to fit
+        bins = new int[tilesX * tilesY][16];
+        binCounts = new int[tilesX * tilesY];
+        tilePixels = new long[tilesX * tilesY];
+    }
+
+    // Change the number of workers drawing tiles
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least 1 thread: " + threads);
+
+        // Let the old workers finish up
+        if (pool != null)
+            pool.shutdown();
+
+        this.threads = threads;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    public int getTileSize() { return tileSize; }
+    public int getThreads() { return threads; }
+
+    // Rasterize all triangles in the buffer, returns the number of pixels written
+    public long drawTriangles(TriangleBuffer t) {
+
+        // Nothing to do
+        if (t.count == 0)
+            return 0;
+
+        // With a single thread there's no need to bin, draw straight to the buffers
+        long written = 0;
+        DepthPyramid pyramid = raster.depthTest ? raster.pyramid : null;
+        if (pool == null) {
+            for (int i = 0; i < t.count; i++) {
+                written += raster.drawTriangle(t, i);
+                // Keep the pyramid up to date so later triangles can be hidden by earlier ones
+                if (pyramid != null && i % REFRESH == REFRESH - 1)
+                    pyramid.refresh();
+            }
+            if (pyramid != null)
+                pyramid.refresh();
+            return written;
+        }
+
+        // Sort the triangles into tiles and draw the tiles in parallel
+        tris = t;
+        binTriangles();
+        pool.invoke(new TileTask(0, bins.length));
+        tris = null;
+        if (pyramid != null)
+            pyramid.refresh();
+
+        // Each tile counted its own pixels
+        for (long n : tilePixels)
+            written += n;
+        return written;
+    }
+
+    // Adds the index of each triangle to every tile its bounding box overlaps
+    private void binTriangles() {
+
+        // Empty the bins from the last frame
+        Arrays.fill(binCounts, 0);
+
+        float[] p = tris.p;
+        for (int i = 0; i < tris.count; i++) {
+            int v = i * 9;
+
+            // Pixel bounding box, rounded outwards so the tile always covers the rasterizer's box
+            int x0 = (int)Math.floor(Math.min(p[v], Math.min(p[v + 3], p[v + 6]))) - 1;
+            int y0 = (int)Math.floor(Math.min(p[v + 1], Math.min(p[v + 4], p[v + 7]))) - 1;
+            int x1 = (int)Math.ceil(Math.max(p[v], Math.max(p[v + 3], p[v + 6]))) + 1;
+            int y1 = (int)Math.ceil(Math.max(p[v + 1], Math.max(p[v + 4], p[v + 7]))) + 1;
+
+            // Convert to a range of tiles on the screen
+            int tx0 = Math.max(0, x0 / tileSize), ty0 = Math.max(0, y0 / tileSize);
+            int tx1 = Math.min(tilesX - 1, x1 / tileSize), ty1 = Math.min(tilesY - 1, y1 / tileSize);
+
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    int b = ty * tilesX + tx;
+                    // Grow the bin if it is full
+                    if (binCounts[b] == bins[b].length)
+                        bins[b] = Arrays.copyOf(bins[b], bins[b].length * 2);
+                    bins[b][binCounts[b]++] = i;
+                }
+            }
+        }
+    }
+
+    // Draws every triangle in a tile's bin, clipped to the tile
+    private void drawTile(int b) {
+        int x = (b % tilesX) * tileSize, y = (b / tilesX) * tileSize;
+        int x1 = Math.min(width, x + tileSize), y1 = Math.min(height, y + tileSize);
+        int[] bin = bins[b];
+        long written = 0;
+        for (int i = 0; i < binCounts[b]; i++)
+            written += raster.drawTriangle(tris, bin[i], x, y, x1, y1);
+        tilePixels[b] = written;
+    }
+
+    // Splits a range of tiles in half until there is one tile left to draw
+    @SuppressWarnings("serial")
+    private class TileTask extends RecursiveAction {
+        int from, to;
+
+        TileTask(int from, int to) { this.from = from; this.to = to; }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                drawTile(from);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new TileTask(from, mid), new TileTask(mid, to));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+// Package
+package components.bench;
+
+// Project packages
+import components.server.RenderServer;
+
+// Java packages
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* LoadGenerator
+ *
+ * Sends render requests to a RenderServer from several client threads at once for a fixed
+ * time, then prints the requests per second and the latency percentiles. Each client sends
+ * its next request as soon as the last one is answered. Requests pick one of a fixed number
+ * of views at random, so a few distinct views mean many identical requests at once for the
+ * server to coalesce, and many views mean mostly separate renders.
+ *
+ * Run with: java -Djava.awt.headless=true components.bench.LoadGenerator [options]
+ *   -u url       server to send to (default http://localhost:8080)
+ *   -m id,...    model ids to ask for (default funnymunkey)
+ *   -c clients   requests in flight at once (default 16)
+ *   -d seconds   how long to send for, after a warmup of the same length (default 10)
+ *   -s WxH       resolution of the images (default 256x256)
+ *   -v views     distinct views of each model to pick from (default 8)
+ *   --serve dir  start a server on a free port in this JVM serving the models in dir, and send to that
+ *
+*/
+
+public class LoadGenerator {
+
+    // Properties
+    static String url = "http://localhost:8080";            // Server the requests go to
+    static String[] models = { "funnymunkey" };             // Models asked for
+    static int clients = 16;                                // Requests in flight at once
+    static int seconds = 10;                                // Time spent sending, after the same time warming up
+    static int width = 256, height = 256;                   // Resolution asked for
+    static int views = 8;                                   // Distinct views of each model
+    static final AtomicLong errors = new AtomicLong();      // Requests that didn't get a 200
+
+    // Methods
+
+    public static void main(String[] args) throws Exception {
+
+        // Read the arguments
+        String serve = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-u": url = args[++i]; break;
+                case "-m": models = args[++i].split(","); break;
+                case "-c": clients = Integer.parseInt(args[++i]); break;
+                case "-d": seconds = Integer.parseInt(args[++i]); break;
+                case "-s":
+                    String[] wh = args[++i].split("x");
+                    width = Integer.parseInt(wh[0]);
+                    height = Integer.parseInt(wh[1]);
+                    break;
+                case "-v": views = Integer.parseInt(args[++i]); break;
+                case "--serve": serve = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        RenderServer server = null;
+        if (serve != null) {
+            server = new RenderServer(Paths.get(serve), 256L << 20, Runtime.getRuntime().availableProcessors());
+            url = "http://localhost:" + server.start(0);
+        }
+
+        System.out.println("# " + clients + " clients, " + models.length + " models x " + views + " views at "
+            + width + "x" + height + ", " + seconds + " s after " + seconds + " s warmup, " + url);
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+
+        // Warm up the server, then time a fresh run
+        run(client, seconds);
+        errors.set(0);
+        long start = System.nanoTime();
+        long[] latencies = run(client, seconds);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf("requests %d, errors %d, %.1f requests/s%n", latencies.length, errors.get(), latencies.length / elapsed);
+        System.out.printf("latency ms  p50 %.2f  p90 %.2f  p99 %.2f  max %.2f%n",
+            percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 100));
+        if (server != null) {
+            System.out.print(server.stats());
+            server.stop(0);
+        }
+        System.exit(0);
+    }
+
+    // Sends requests from every client for the given time, returns the latency of each in nanoseconds
+    static long[] run(HttpClient client, int seconds) throws InterruptedException {
+        long end = System.nanoTime() + seconds * 1000000000L;
+        long[][] perClient = new long[clients][];
+        int[] counts = new int[clients];
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            int id = c;
+            threads[c] = new Thread(() -> {
+                long[] lat = new long[1024];
+                int n = 0;
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/render?" + pick(random)))
+                        .timeout(Duration.ofSeconds(60)).build();
+                    long t = System.nanoTime();
+                    try {
+                        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                        if (response.statusCode() != 200)
+                            errors.incrementAndGet();
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (n == lat.length)
+                        lat = Arrays.copyOf(lat, n * 2);
+                    lat[n++] = System.nanoTime() - t;
+                }
+                perClient[id] = lat;
+                counts[id] = n;
+            }, "Client " + c);
+            threads[c].start();
+        }
+
+        // Gather every client's latencies into one array
+        int total = 0;
+        for (int c = 0; c < clients; c++) {
+            threads[c].join();
+            total += counts[c];
+        }
+        long[] all = new long[total];
+        for (int c = 0, at = 0; c < clients; c++) {
+            if (perClient[c] == null)
+                continue;
+            System.arraycopy(perClient[c], 0, all, at, counts[c]);
+            at += counts[c];
+        }
+        return all;
+    }
+
+    // Returns the query for one of the views of one of the models
+    static String pick(ThreadLocalRandom random) {
+        String model = models[random.nextInt(models.length)];
+        int view = random.nextInt(views);
+        return "model=" + model + "&w=" + width + "&h=" + height + "&spin=" + (view * 360f / views);
+    }
+
+    // Returns the given percentile of sorted nanosecond latencies in milliseconds
+    static double percentile(long[] sorted, int p) {
+        if (sorted.length == 0)
+            return 0;
+        int i = (int)Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+    }
+}
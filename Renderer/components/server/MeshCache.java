@@ -0,0 +1,127 @@
+// Package
+package components.server;
+
+// Project packages
+import components.structs.*;
+
+// Java packages
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/* MeshCache
+ *
+ * Keeps the most recently used meshes in memory, up to a total size in bytes. A mesh that
+ * isn't there is loaded by the thread that asked for it first, any other thread asking for
+ * it meanwhile waits for that load instead of starting its own. Once the total is over the
+ * limit the least recently used meshes are dropped, the one just loaded is always kept.
+ * Failed loads aren't kept, so the next request tries again.
+ *
+*/
+
+public class MeshCache {
+
+    // Properties
+    final Loader loader;                                    // Loads a mesh that isn't in the cache
+    final long maxBytes;                                    // Most bytes of meshes to keep
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);  // Least recently used first
+    long bytes;                                             // Bytes of the meshes loaded so far
+    long hits, misses, evictions;                           // Lookups that found a mesh, had to load one, and meshes dropped
+
+    // Constructors
+    public MeshCache(Loader loader, long maxBytes) {
+        this.loader = loader;
+        this.maxBytes = maxBytes;
+    }
+
+    // Methods
+
+    // Returns the mesh with the given id, loading it if it isn't in the cache
+    public IndexedMesh get(String id) throws IOException {
+        Entry e;
+        boolean load = false;
+        synchronized (this) {
+            e = entries.get(id);
+            if (e == null) {
+                e = new Entry();
+                entries.put(id, e);
+                load = true;
+                misses++;
+            } else
+                hits++;
+        }
+
+        // Load outside the lock so other meshes can still be found
+        if (load) {
+            try {
+                IndexedMesh m = loader.load(id);
+                synchronized (this) {
+                    e.bytes = sizeOf(m);
+                    bytes += e.bytes;
+                    trim(e);
+                }
+                e.mesh.complete(m);
+            } catch (IOException | RuntimeException | Error x) {
+                synchronized (this) {
+                    entries.remove(id, e);
+                }
+                e.mesh.completeExceptionally(x);
+            }
+        }
+
+        try {
+            return e.mesh.join();
+        } catch (CompletionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            throw new IOException("Loading " + id + " failed", cause);
+        }
+    }
+
+    // Returns a line of hits, misses and sizes
+    public synchronized String stats() {
+        return "meshes " + entries.size() + ", " + bytes / 1024 + " KB of " + maxBytes / 1024
+            + " KB, hits " + hits + ", misses " + misses + ", evictions " + evictions;
+    }
+
+    // Drops the least recently used loaded meshes until the total fits, never dropping keep
+    private void trim(Entry keep) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Entry e = it.next();
+            // Meshes still loading haven't been counted yet
+            if (e == keep || e.bytes == 0)
+                continue;
+            it.remove();
+            bytes -= e.bytes;
+            evictions++;
+        }
+    }
+
+    // Static Methods
+
+    // Returns roughly how many bytes a mesh and its levels of detail take up
+    static long sizeOf(IndexedMesh m) {
+        long size = 64 + m.positions.length * 4L + m.indices.length * 4L;
+        if (m.colors != null)
+            size += m.colors.length * 4L;
+        if (m.lods != null)
+            for (IndexedMesh l : m.lods)
+                size += sizeOf(l);
+        return size;
+    }
+
+    // Loads a mesh by id
+    public interface Loader {
+        IndexedMesh load(String id) throws IOException;
+    }
+
+    // A mesh in the cache, or on its way
+    static class Entry {
+        CompletableFuture<IndexedMesh> mesh = new CompletableFuture<>();   // Completes when the mesh has loaded
+        long bytes;                                                         // Size of the mesh, 0 until it has loaded
+    }
+}
@@ -0,0 +1,364 @@
+// Package
+package components.server;
+
+// Project packages
+import components.*;
+import components.structs.*;
+
+// Java packages
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+/* RenderServer
+ *
+ * Renders models to PNGs over HTTP, for thumbnails and previews. GET /render with these
+ * query parameters returns an image/png:
+ *
+ *   model      id of the model, the name of an OBJ file in the model directory without .obj
+ *   w, h       resolution (default 256x256, at most MAX_SIZE each way)
+ *   x, y, z    camera position (default in front of the model, far enough back to see all of it)
+ *   yaw        camera yaw in radians (default 0, looking down z)
+ *   spin       degrees to turn the model about its vertical axis first (default 0)
+ *
+ * GET /stats returns counts of requests, renders and the mesh cache as plain text.
+ * Parsed meshes are kept in a MeshCache shared by every request. Each request runs on its own
+ * virtual thread when the JDK has them, otherwise on a fixed pool of threads. At most one
+ * render per core runs at once, each on a pooled single threaded renderer of the right size,
+ * so the work is spread across requests instead of inside each one. Requests for exactly the
+ * same image while it is being rendered wait for that render instead of starting another.
+ *
+ * Run with: java -Djava.awt.headless=true Entry --serve [options]
+ *   -p port      port to listen on (default 8080)
+ *   -d dir       directory of OBJ models (default the working directory)
+ *   -c MB        megabytes of meshes to cache (default 256)
+ *   -r renders   renders at once (default the cores)
+ *
+*/
+
+public class RenderServer {
+
+    // Properties
+    static final int MAX_SIZE = 4096;                       // Largest width or height that can be asked for
+    static final int MAX_SIZES = 16;                        // Resolutions renderers are kept for
+    static final Pattern MODEL_ID = Pattern.compile("[A-Za-z0-9_.-]+");
+    final Path models;                                      // Directory the OBJ files are in
+    final MeshCache meshes;                                 // Meshes already parsed
+    final Semaphore renders;                                // Renders allowed to run at once
+    final Map<Long, ConcurrentLinkedQueue<Renderer>> idle = new ConcurrentHashMap<>();             // Free renderers by size
+    final Map<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();           // Renders running, by request
+    final AtomicLong requests = new AtomicLong();           // Render requests answered
+    final AtomicLong rendered = new AtomicLong();           // Images rendered
+    final AtomicLong coalesced = new AtomicLong();          // Requests that waited for another's render
+    final AtomicLong failed = new AtomicLong();             // Requests that got an error
+    HttpServer server;                                      // Listening server, null if not started
+    ExecutorService executor;                               // Runs the requests
+
+    // Constructors
+    public RenderServer(Path models, long cacheBytes, int maxRenders) {
+        this.models = models;
+        this.meshes = new MeshCache(this::loadMesh, cacheBytes);
+        this.renders = new Semaphore(maxRenders);
+    }
+
+    // Methods
+
+    // Starts listening on the port, 0 picks a free one, returns the port
+    public synchronized int start(int port) throws IOException {
+        if (server != null)
+            throw new IllegalStateException("Server already started");
+        executor = newExecutor(renders.availablePermits());
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/render", this::handleRender);
+        server.createContext("/stats", this::handleStats);
+        server.setExecutor(executor);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    // Stops listening, waiting up to delay seconds for requests being answered
+    public synchronized void stop(int delay) {
+        if (server == null)
+            return;
+        server.stop(delay);
+        executor.shutdown();
+        server = null;
+    }
+
+    // Renders a model as a PNG, waiting for the same render if another request has already started it
+    public byte[] render(String model, int width, int height, float[] pose, float spin) throws IOException {
+        String key = model + "|" + width + "x" + height + "|" + (pose == null ? "-" : pose[0] + "," + pose[1] + "," + pose[2] + "," + pose[3]) + "|" + spin;
+        CompletableFuture<byte[]> f = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = inFlight.putIfAbsent(key, f);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return await(running);
+        }
+
+        try {
+            f.complete(renderPng(meshes.get(model), width, height, pose, spin));
+        } catch (IOException | RuntimeException | Error e) {
+            f.completeExceptionally(e);
+        } finally {
+            // Later requests render again, they may see a changed model
+            inFlight.remove(key, f);
+        }
+        return await(f);
+    }
+
+    // Draws the mesh on a pooled renderer and encodes it as a PNG
+    private byte[] renderPng(IndexedMesh mesh, int width, int height, float[] pose, float spin) throws IOException {
+        try {
+            renders.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting to render", e);
+        }
+        Renderer r = null;
+        try {
+            r = takeRenderer(width, height);
+
+            // The model turned about its centre, the camera in front of it unless a pose was given
+            Scene scene = new Scene();
+            Mat4 transform = Mat4.translate(-mesh.center.x, -mesh.center.y, -mesh.center.z);
+            transform.matrixMultiply(Mat4.rotateY((float)Math.toRadians(spin)));
+            transform.matrixMultiply(Mat4.translate(mesh.center.x, mesh.center.y, mesh.center.z));
+            scene.add(mesh, transform);
+            Camera camera = pose == null
+                ? new Camera(mesh.center.x, mesh.center.y, mesh.center.z - mesh.radius * 1.6f - 0.1f, 0)
+                : new Camera(pose[0], pose[1], pose[2], pose[3]);
+            r.render(scene, camera);
+            rendered.incrementAndGet();
+
+            // Encode while the image is still this request's
+            ByteArrayOutputStream png = new ByteArrayOutputStream(width * height / 4 + 1024);
+            if (!ImageIO.write(r.getImage(), "png", png))
+                throw new IOException("No PNG writer");
+            return png.toByteArray();
+        } finally {
+            if (r != null)
+                returnRenderer(r);
+            renders.release();
+        }
+    }
+
+    // Returns a free renderer of the given size, making one if there isn't one
+    private Renderer takeRenderer(int width, int height) {
+        ConcurrentLinkedQueue<Renderer> q = idle.get(((long)width << 32) | height);
+        Renderer r = q != null ? q.poll() : null;
+        if (r == null) {
+            r = new Renderer(width, height);
+            // Requests are rendered side by side, so each renderer only needs the thread it is called on
+            r.setRasterThreads(1);
+            r.setGeometryThreads(1);
+        }
+        return r;
+    }
+
+    // Puts a renderer back to be used again
+    private void returnRenderer(Renderer r) {
+        // Too many different sizes have been asked for, let the renderers of all of them go
+        if (idle.size() > MAX_SIZES)
+            idle.clear();
+        idle.computeIfAbsent(((long)r.getWidth() << 32) | r.getHeight(), k -> new ConcurrentLinkedQueue<>()).add(r);
+    }
+
+    // Loads the OBJ file for a model id from the model directory
+    private IndexedMesh loadMesh(String id) throws IOException {
+        Path file = models.resolve(id + ".obj");
+        if (!Files.isRegularFile(file))
+            throw new NoSuchModelException(id);
+        IndexedMesh m = ModelLoader.load(file);
+        if (m.triangleCount == 0)
+            throw new IOException("Model " + id + " has no triangles");
+        return m;
+    }
+
+    // Answers GET /render
+    private void handleRender(HttpExchange ex) throws IOException {
+        try (ex) {
+            if (!ex.getRequestMethod().equals("GET")) {
+                sendText(ex, 405, "Only GET is supported");
+                return;
+            }
+            requests.incrementAndGet();
+
+            // Read and check the parameters
+            Map<String, String> q = query(ex.getRequestURI().getRawQuery());
+            String model = q.get("model");
+            int width, height;
+            float[] pose = null;
+            float spin;
+            try {
+                if (model == null || !MODEL_ID.matcher(model).matches() || model.startsWith("."))
+                    throw new IllegalArgumentException("model must be a model id");
+                width = Integer.parseInt(q.getOrDefault("w", "256"));
+                height = Integer.parseInt(q.getOrDefault("h", "256"));
+                if (width < 1 || height < 1 || width > MAX_SIZE || height > MAX_SIZE)
+                    throw new IllegalArgumentException("w and h must be from 1 to " + MAX_SIZE);
+                if (q.containsKey("x") || q.containsKey("y") || q.containsKey("z") || q.containsKey("yaw"))
+                    pose = new float[] { parse(q, "x"), parse(q, "y"), parse(q, "z"), parse(q, "yaw") };
+                spin = parse(q, "spin");
+            } catch (IllegalArgumentException e) {
+                failed.incrementAndGet();
+                sendText(ex, 400, e.getMessage());
+                return;
+            }
+
+            byte[] png;
+            try {
+                png = render(model, width, height, pose, spin);
+            } catch (NoSuchModelException e) {
+                failed.incrementAndGet();
+                sendText(ex, 404, e.getMessage());
+                return;
+            } catch (IOException | RuntimeException e) {
+                failed.incrementAndGet();
+                sendText(ex, 500, e.toString());
+                return;
+            }
+            ex.getResponseHeaders().set("Content-Type", "image/png");
+            ex.sendResponseHeaders(200, png.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(png);
+            }
+        }
+    }
+
+    // Answers GET /stats
+    private void handleStats(HttpExchange ex) throws IOException {
+        try (ex) {
+            sendText(ex, 200, stats());
+        }
+    }
+
+    // Returns the counts of requests, renders and the mesh cache, one per line
+    public String stats() {
+        return "requests " + requests.get() + "\nrendered " + rendered.get() + "\ncoalesced " + coalesced.get()
+            + "\nfailed " + failed.get() + "\nin flight " + inFlight.size() + "\ncache " + meshes.stats() + "\n";
+    }
+
+    // Static Methods
+
+    public static void main(String[] args) {
+        int port = 8080;
+        Path dir = Paths.get(System.getProperty("user.dir"));
+        long cacheMb = 256;
+        int maxRenders = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-p": port = Integer.parseInt(args[++i]); break;
+                    case "-d": dir = Paths.get(args[++i]); break;
+                    case "-c": cacheMb = Long.parseLong(args[++i]); break;
+                    case "-r": maxRenders = Integer.parseInt(args[++i]); break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Bad arguments: " + e);
+            System.err.println("Usage: --serve [-p port] [-d dir] [-c MB] [-r renders]");
+            System.exit(1);
+        }
+
+        RenderServer server = new RenderServer(dir, cacheMb << 20, maxRenders);
+        try {
+            port = server.start(port);
+        } catch (IOException e) {
+            System.err.println("Could not start the server: " + e);
+            System.exit(1);
+        }
+        System.out.println("Serving models from " + dir + " on http://localhost:" + port + "/render?model=<id>");
+    }
+
+    // Returns an executor giving each task its own virtual thread if the JDK has them, otherwise a
+    // fixed pool with a few threads for each render that can run, to cover reading and writing
+    static ExecutorService newExecutor(int maxRenders) {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Math.max(4, maxRenders * 4));
+        }
+    }
+
+    // Waits for a render, passing on its failure
+    static byte[] await(CompletableFuture<byte[]> f) throws IOException {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException("Render failed", cause);
+        }
+    }
+
+    // Splits a query string into its decoded parameters
+    static Map<String, String> query(String raw) {
+        Map<String, String> q = new HashMap<>();
+        if (raw == null)
+            return q;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            q.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return q;
+    }
+
+    // Returns a float parameter, 0 if it isn't there
+    static float parse(Map<String, String> q, String name) {
+        String v = q.get(name);
+        if (v == null)
+            return 0;
+        try {
+            float f = Float.parseFloat(v);
+            if (!Float.isFinite(f))
+                throw new NumberFormatException();
+            return f;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    // Sends a plain text response
+    static void sendText(HttpExchange ex, int status, String text) throws IOException {
+        byte[] b = text.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(status, b.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(b);
+        }
+    }
+
+    // Thrown for a model id with no OBJ file
+    @SuppressWarnings("serial")
+    static class NoSuchModelException extends IOException {
+        NoSuchModelException(String id) {
+            super("No model " + id);
+        }
+    }
+}
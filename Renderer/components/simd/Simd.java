@@ -0,0 +1,109 @@
+// Package
+package components.simd;
+
+/* Simd
+ *
+ * The inner loops of the renderer that can be run on SIMD instructions: transforming packed
+ * vertices and depth testing a row of pixels against edge functions.
+ * This class holds plain scalar versions. When the jdk.incubator.vector module is there
+ * (java --add-modules jdk.incubator.vector) VectorSimd is loaded in its place, which runs the
+ * same loops on as many lanes as the CPU has (AVX2, AVX-512, NEON), and gives bit for bit the
+ * same results. Set -Dcomponents.simd=false to always use the scalar loops.
+ *
+*/
+
+public class Simd {
+
+    // Properties
+    public static final int ROW = 8;                        // Pixels drawn by drawRow
+    public static final Simd KERNELS = load();              // The loops in use, vector ones if they could be loaded
+
+    // Constructors
+    Simd() {}
+
+    // Methods
+
+    // Returns a short description of the loops in use
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+
+    // Multiply count packed x, y, z points (w of 1) by the row major 4x4 matrix m, keeping x, y and z
+    // Reads from in starting at inOffset and writes x, y, z to out starting at outOffset
+    public void transformPoints(float[] m, float[] in, int inOffset, float[] out, int outOffset, int count) {
+        float m0 = m[0], m1 = m[1], m2 = m[2];
+        float m4 = m[4], m5 = m[5], m6 = m[6];
+        float m8 = m[8], m9 = m[9], m10 = m[10];
+        float m12 = m[12], m13 = m[13], m14 = m[14];
+        for (int i = 0; i < count; i++, inOffset += 3, outOffset += 3) {
+            float x = in[inOffset], y = in[inOffset + 1], z = in[inOffset + 2];
+            out[outOffset] = x * m0 + y * m4 + z * m8 + m12;
+            out[outOffset + 1] = x * m1 + y * m5 + z * m9 + m13;
+            out[outOffset + 2] = x * m2 + y * m6 + z * m10 + m14;
+        }
+    }
+
+    // Multiply count packed x, y, z points (w of 1) by the row major 4x4 matrix m, keeping x, y, z and w
+    // Reads from in starting at inOffset and writes x, y, z, w to out starting at outOffset
+    public void transformPoints4(float[] m, float[] in, int inOffset, float[] out, int outOffset, int count) {
+        float m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3];
+        float m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+        float m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11];
+        float m12 = m[12], m13 = m[13], m14 = m[14], m15 = m[15];
+        for (int i = 0; i < count; i++, inOffset += 3, outOffset += 4) {
+            float x = in[inOffset], y = in[inOffset + 1], z = in[inOffset + 2];
+            out[outOffset] = x * m0 + y * m4 + z * m8 + m12;
+            out[outOffset + 1] = x * m1 + y * m5 + z * m9 + m13;
+            out[outOffset + 2] = x * m2 + y * m6 + z * m10 + m14;
+            out[outOffset + 3] = x * m3 + y * m7 + z * m11 + m15;
+        }
+    }
+
+    // Draws ROW pixels starting at index i of the buffers, whose first pixel has x coordinate x
+    // A pixel is inside the triangle when all 3 edge functions are at least 0, they start at
+    // wa, wb and wc and go up by ea, eb and ec a pixel. An edge every pixel is inside can be
+    // passed as 0 and 0.
+    // Depth is zRow + dzdx * (x + 0.5 - fx) and must be less than the z buffer's, unless depthTest
+    // is off or front says the row is known to be in front of everything in the z buffer.
+    // Returns the number of pixels written.
+    public int drawRow(int[] frameBuffer, float[] zBuffer, int i, int x, int color,
+                       float zRow, float dzdx, float fx,
+                       int wa, int ea, int wb, int eb, int wc, int ec,
+                       boolean depthTest, boolean front) {
+        int written = 0;
+        for (int end = i + ROW; i < end; i++, x++, wa += ea, wb += eb, wc += ec) {
+            // Skip pixels outside any edge
+            if ((wa | wb | wc) < 0)
+                continue;
+
+            if (depthTest) {
+                // Only draw if this point is closer than what has already been drawn
+                float z = zRow + dzdx * (x + 0.5f - fx);
+                if (front || z < zBuffer[i]) {
+                    zBuffer[i] = z;
+                    frameBuffer[i] = color;
+                    written++;
+                }
+            } else {
+                frameBuffer[i] = color;
+                written++;
+            }
+        }
+        return written;
+    }
+
+    // Static Methods
+
+    // Loads the vector loops if they are enabled and the Vector API is there, otherwise the scalar ones
+    private static Simd load() {
+        if (Boolean.parseBoolean(System.getProperty("components.simd", "true"))) {
+            try {
+                return (Simd)Class.forName("components.simd.VectorSimd").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // The jdk.incubator.vector module wasn't added, or the CPU has no vector registers worth using
+            }
+        }
+        return new Simd();
+    }
+}
@@ -0,0 +1,162 @@
+// Package
+package components.simd;
+
+// Java packages
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/* VectorSimd
+ *
+ * The loops of Simd written with the Vector API, using the widest vectors the CPU prefers.
+ * Only loaded by Simd, and only when the jdk.incubator.vector module is there.
+ * Every multiply and add is done separately, in the same order as the scalar loops, so the
+ * results are exactly the same.
+ * Points are transformed lanes / 4 at a time: each point takes 4 lanes, its x, y and z are
+ * spread across them with a shuffle and multiplied by the matrix's rows. Rows of pixels use
+ * 8 lane vectors, one lane per pixel, and are only used when the CPU has 256 bit vectors.
+ *
+*/
+
+class VectorSimd extends Simd {
+
+    // Properties
+    static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Float> ROW_FLOATS = FloatVector.SPECIES_256;
+    static final VectorSpecies<Integer> ROW_INTS = IntVector.SPECIES_256;
+    static final int LANES = FLOATS.length();               // Floats in a vector
+    static final int POINTS = LANES / 4;                    // Points transformed at once
+    static final boolean ROWS = INTS.vectorBitSize() >= 256; // Whether rows of pixels are drawn with vectors
+    // The vectors are kept in static finals so the JIT knows exactly what shape they are
+    static final VectorShuffle<Float> SPREAD_X = shuffle(0); // Copy each point's x, y or z into all 4 of its lanes
+    static final VectorShuffle<Float> SPREAD_Y = shuffle(1);
+    static final VectorShuffle<Float> SPREAD_Z = shuffle(2);
+    static final VectorShuffle<Float> PACK_3 = shuffle(3);  // Packs x, y, z, w points down to x, y, z
+    static final FloatVector ROW_X = FloatVector.zero(ROW_FLOATS).addIndex(1);  // 0 to 7, the offset of each pixel of a row
+    static final IntVector ROW_STEPS = IntVector.zero(ROW_INTS).addIndex(1);    // 0 to 7, the steps along a row to each pixel
+    static final int[] MATRIX_LANES = matrixLanes();  // 0 to 3 over and over, gathers a matrix row into every point
+
+    // Constructors
+    VectorSimd() {
+        if (LANES < 4)
+            throw new UnsupportedOperationException("Vectors too small: " + FLOATS);
+    }
+
+    // Methods
+
+    @Override
+    public String toString() {
+        return "Vector API, " + LANES + " float lanes" + (ROWS ? "" : ", scalar rows");
+    }
+
+    @Override
+    public void transformPoints(float[] m, float[] in, int inOffset, float[] out, int outOffset, int count) {
+        // Each step reads and writes a whole vector, a few floats past the points it transforms
+        // Steps only run while those floats still belong to points that are written afterwards,
+        // and in and out can't be the same as they would overwrite points not read yet
+        int i = 0;
+        if (in != out) {
+            FloatVector r0 = rowVector(m, 0), r1 = rowVector(m, 4), r2 = rowVector(m, 8), r3 = rowVector(m, 12);
+            for (; (count - i) * 3 >= LANES;
+                   i += POINTS, inOffset += POINTS * 3, outOffset += POINTS * 3) {
+                FloatVector p = FloatVector.fromArray(FLOATS, in, inOffset);
+                p.rearrange(SPREAD_X).mul(r0)
+                    .add(p.rearrange(SPREAD_Y).mul(r1))
+                    .add(p.rearrange(SPREAD_Z).mul(r2))
+                    .add(r3)
+                    .rearrange(PACK_3)
+                    .intoArray(out, outOffset);
+            }
+        }
+        // The points left over
+        super.transformPoints(m, in, inOffset, out, outOffset, count - i);
+    }
+
+    @Override
+    public void transformPoints4(float[] m, float[] in, int inOffset, float[] out, int outOffset, int count) {
+        int i = 0;
+        if (in != out) {
+            FloatVector r0 = rowVector(m, 0), r1 = rowVector(m, 4), r2 = rowVector(m, 8), r3 = rowVector(m, 12);
+            for (; i + POINTS <= count && inOffset + LANES <= in.length;
+                   i += POINTS, inOffset += POINTS * 3, outOffset += LANES) {
+                FloatVector p = FloatVector.fromArray(FLOATS, in, inOffset);
+                p.rearrange(SPREAD_X).mul(r0)
+                    .add(p.rearrange(SPREAD_Y).mul(r1))
+                    .add(p.rearrange(SPREAD_Z).mul(r2))
+                    .add(r3)
+                    .intoArray(out, outOffset);
+            }
+        }
+        super.transformPoints4(m, in, inOffset, out, outOffset, count - i);
+    }
+
+    @Override
+    public int drawRow(int[] frameBuffer, float[] zBuffer, int i, int x, int color,
+                       float zRow, float dzdx, float fx,
+                       int wa, int ea, int wb, int eb, int wc, int ec,
+                       boolean depthTest, boolean front) {
+        if (!ROWS)
+            return super.drawRow(frameBuffer, zBuffer, i, x, color, zRow, dzdx, fx, wa, ea, wb, eb, wc, ec, depthTest, front);
+
+        // Pixels inside all 3 edges. Everything is kept as float lanes so no masks have to be
+        // converted: shifting the edges' sign bit across gives 0 (+0.0) inside and -1 (NaN) outside
+        IntVector a = ROW_STEPS.mul(ea).add(wa);
+        IntVector b = ROW_STEPS.mul(eb).add(wb);
+        IntVector c = ROW_STEPS.mul(ec).add(wc);
+        VectorMask<Float> in = a.or(b).or(c).lanewise(VectorOperators.ASHR, 31).reinterpretAsFloats().compare(VectorOperators.EQ, 0);
+        if (!in.anyTrue())
+            return 0;
+
+        // Masks are never passed from one branch into code after it, the JIT boxes them if they are
+        if (depthTest) {
+            // Pixels closer than the z buffer, worked out the same way as the scalar loop
+            // A front row always passes, so it is tested like any other
+            FloatVector z = ROW_X.add((float)x).add(0.5f).sub(fx).mul(dzdx).add(zRow);
+            FloatVector old = FloatVector.fromArray(ROW_FLOATS, zBuffer, i);
+            VectorMask<Float> pass = in.and(z.compare(VectorOperators.LT, old));
+            old.blend(z, pass).intoArray(zBuffer, i);
+            return writeColor(frameBuffer, i, color, pass);
+        }
+        return writeColor(frameBuffer, i, color, in);
+    }
+
+    // Writes color to the pixels of the row at i that are set in the mask, returns how many there were
+    // The colors are blended as float lanes, which only moves their bits around
+    private static int writeColor(int[] frameBuffer, int i, int color, VectorMask<Float> mask) {
+        IntVector.fromArray(ROW_INTS, frameBuffer, i).reinterpretAsFloats()
+            .blend(IntVector.broadcast(ROW_INTS, color).reinterpretAsFloats(), mask)
+            .reinterpretAsInts().intoArray(frameBuffer, i);
+        return mask.trueCount();
+    }
+
+    // Returns LANES indices counting 0 to 3 over and over
+    private static int[] matrixLanes() {
+        int[] lanes = new int[LANES];
+        for (int l = 0; l < LANES; l++)
+            lanes[l] = l % 4;
+        return lanes;
+    }
+
+    // Returns the shuffle that spreads x (0), y (1) or z (2) of each point across its 4 lanes,
+    // or for 3 the one that packs x, y, z, w points down to x, y, z
+    private static VectorShuffle<Float> shuffle(int c) {
+        int[] s = new int[LANES];
+        for (int l = 0; l < LANES; l++) {
+            if (c < 3)
+                s[l] = (l / 4) * 3 + c;
+            else
+                // The last lanes aren't used, point them anywhere
+                s[l] = l < POINTS * 3 ? (l / 3) * 4 + l % 3 : 0;
+        }
+        return VectorShuffle.fromArray(FLOATS, s, 0);
+    }
+
+    // Returns a vector holding row r of the matrix (4 floats from m[r]) once for each point
+    private static FloatVector rowVector(float[] m, int r) {
+        return FloatVector.fromArray(FLOATS, m, r, MATRIX_LANES, 0);
+    }
+}
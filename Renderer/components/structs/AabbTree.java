@@ -0,0 +1,363 @@
+// Package
+package components.structs;
+
+// Java Packages
+import java.util.Arrays;
+
+/* AabbTree
+ *
+ * A dynamic bounding volume hierarchy of axis aligned boxes, used to find the objects in
+ * view without looking at every object. Each object is a leaf holding a "fat" box, its real
+ * box grown by a margin, so an object that moves a little stays inside its fat box and the
+ * tree doesn't change at all. Leaves are inserted next to the node that grows the tree's
+ * surface area the least and the tree is kept balanced with AVL style rotations, so insert,
+ * move and remove all take logarithmic time.
+ * Nodes are stored in flat arrays and reused through a free list, a node's id doesn't change
+ * while it is in the tree. Queries don't change the tree, so several threads can query it at
+ * once as long as nothing is added, moved or removed at the same time.
+ *
+*/
+
+public class AabbTree {
+
+    // Properties
+    public static final int NULL = -1;                      // No node
+    float[] box = new float[16 * 6];                        // minX, minY, minZ, maxX, maxY, maxZ of each node
+    int[] parent = new int[16];                             // Parent of each node, the next free node for free nodes
+    int[] child1 = new int[16];                             // First child of each node, NULL for leaves
+    int[] child2 = new int[16];                             // Second child of each node
+    int[] height = new int[16];                             // 0 for leaves, -1 for free nodes
+    Object[] data = new Object[16];                         // The object each leaf holds
+    int root = NULL;                                        // Top of the tree
+    int freeList = NULL;                                    // First unused node
+    int nodeCount;                                          // Nodes ever used, the rest of the arrays are empty
+    int leafCount;                                          // Objects in the tree
+    float margin;                                           // How much leaves are grown by, as a fraction of their size
+
+    // Object found by a query, inside is true if its box is completely inside the frustum
+    public interface Visitor {
+        void visit(Object data, boolean inside);
+    }
+
+    // Constructors
+    public AabbTree() { this(0.1f); }
+    public AabbTree(float margin) {
+        this.margin = margin;
+        Arrays.fill(height, -1);
+    }
+
+    // Methods
+
+    // Add an object with the given box, returns the id of its leaf
+    public int insert(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, Object d) {
+        int leaf = allocate();
+        setFat(leaf, minX, minY, minZ, maxX, maxY, maxZ);
+        data[leaf] = d;
+        height[leaf] = 0;
+        insertLeaf(leaf);
+        leafCount++;
+        return leaf;
+    }
+
+    // Remove the object with the given leaf id
+    public void remove(int leaf) {
+        checkLeaf(leaf);
+        removeLeaf(leaf);
+        free(leaf);
+        leafCount--;
+    }
+
+    // Change the box of an object, returns true if the tree had to change
+    // Nothing changes if the new box still fits inside the leaf's fat box
+    public boolean move(int leaf, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        checkLeaf(leaf);
+        int b = leaf * 6;
+        if (box[b] <= minX && box[b + 1] <= minY && box[b + 2] <= minZ &&
+            box[b + 3] >= maxX && box[b + 4] >= maxY && box[b + 5] >= maxZ)
+            return false;
+
+        removeLeaf(leaf);
+        setFat(leaf, minX, minY, minZ, maxX, maxY, maxZ);
+        insertLeaf(leaf);
+        return true;
+    }
+
+    // Returns the object held by a leaf
+    public Object get(int leaf) {
+        checkLeaf(leaf);
+        return data[leaf];
+    }
+
+    // Returns the number of objects in the tree
+    public int size() {
+        return leafCount;
+    }
+
+    // Returns the height of the tree, 0 for a single object and -1 for an empty tree
+    public int height() {
+        return root == NULL ? -1 : height[root];
+    }
+
+    // Visits every object whose fat box is at least partly inside the frustum
+    // Whole branches are skipped as soon as their box is outside, and aren't tested any
+    // further once their box is completely inside
+    public void query(Frustum f, Visitor v) {
+        if (root != NULL)
+            query(root, f, false, v);
+    }
+
+    // Visits the objects under node
+    private void query(int node, Frustum f, boolean inside, Visitor v) {
+        if (!inside) {
+            int b = node * 6;
+            int side = f.testBox(box[b], box[b + 1], box[b + 2], box[b + 3], box[b + 4], box[b + 5]);
+            if (side == Frustum.OUTSIDE)
+                return;
+            inside = side == Frustum.INSIDE;
+        }
+        if (child1[node] == NULL) {
+            v.visit(data[node], inside);
+            return;
+        }
+        query(child1[node], f, inside, v);
+        query(child2[node], f, inside, v);
+    }
+
+    // Set a leaf's box to the given box grown by the margin
+    private void setFat(int leaf, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        float mx = (maxX - minX) * margin, my = (maxY - minY) * margin, mz = (maxZ - minZ) * margin;
+        // Flat boxes still get some room to move
+        float m = Math.max(mx, Math.max(my, mz)) * 0.5f;
+        int b = leaf * 6;
+        box[b] = minX - Math.max(mx, m); box[b + 1] = minY - Math.max(my, m); box[b + 2] = minZ - Math.max(mz, m);
+        box[b + 3] = maxX + Math.max(mx, m); box[b + 4] = maxY + Math.max(my, m); box[b + 5] = maxZ + Math.max(mz, m);
+    }
+
+    // Puts a leaf into the tree next to the node that makes the tree's boxes grow the least
+    private void insertLeaf(int leaf) {
+        if (root == NULL) {
+            root = leaf;
+            parent[leaf] = NULL;
+            return;
+        }
+
+        // Walk down the tree to find the best sibling
+        int index = root;
+        while (child1[index] != NULL) {
+            int c1 = child1[index], c2 = child2[index];
+            float area = area(index);
+            float combined = unionArea(index, leaf);
+
+            // Cost of making a new parent for this node and the leaf
+            float cost = 2 * combined;
+            // Cost of pushing the leaf further down, every node above it grows
+            float inherit = 2 * (combined - area);
+            float cost1 = unionArea(leaf, c1) - (child1[c1] == NULL ? 0 : area(c1)) + inherit;
+            float cost2 = unionArea(leaf, c2) - (child1[c2] == NULL ? 0 : area(c2)) + inherit;
+
+            if (cost < cost1 && cost < cost2)
+                break;
+            index = cost1 < cost2 ? c1 : c2;
+        }
+        int sibling = index;
+
+        // Make a new parent for the sibling and the leaf
+        int oldParent = parent[sibling];
+        int newParent = allocate();
+        parent[newParent] = oldParent;
+        data[newParent] = null;
+        union(sibling, leaf, newParent);
+        height[newParent] = height[sibling] + 1;
+        if (oldParent != NULL) {
+            if (child1[oldParent] == sibling) child1[oldParent] = newParent;
+            else child2[oldParent] = newParent;
+        } else
+            root = newParent;
+        child1[newParent] = sibling;
+        child2[newParent] = leaf;
+        parent[sibling] = newParent;
+        parent[leaf] = newParent;
+
+        // Walk back up fixing the boxes and heights
+        fixUpwards(parent[leaf]);
+    }
+
+    // Takes a leaf out of the tree, its parent is replaced by its sibling
+    private void removeLeaf(int leaf) {
+        if (leaf == root) {
+            root = NULL;
+            return;
+        }
+
+        int p = parent[leaf];
+        int grandParent = parent[p];
+        int sibling = child1[p] == leaf ? child2[p] : child1[p];
+
+        if (grandParent != NULL) {
+            if (child1[grandParent] == p) child1[grandParent] = sibling;
+            else child2[grandParent] = sibling;
+            parent[sibling] = grandParent;
+            free(p);
+            fixUpwards(grandParent);
+        } else {
+            root = sibling;
+            parent[sibling] = NULL;
+            free(p);
+        }
+    }
+
+    // Rebalances and refits every node from index up to the root
+    private void fixUpwards(int index) {
+        while (index != NULL) {
+            index = balance(index);
+            int c1 = child1[index], c2 = child2[index];
+            height[index] = 1 + Math.max(height[c1], height[c2]);
+            union(c1, c2, index);
+            index = parent[index];
+        }
+    }
+
+    // If one child of node a is more than 1 taller than the other, rotate it up to take a's place
+    // Returns the node now in a's place
+    private int balance(int a) {
+        if (child1[a] == NULL || height[a] < 2)
+            return a;
+
+        int b = child1[a], c = child2[a];
+        int diff = height[c] - height[b];
+
+        // Rotate c up
+        if (diff > 1) {
+            int f = child1[c], g = child2[c];
+            child1[c] = a;
+            parent[c] = parent[a];
+            parent[a] = c;
+            replaceChild(parent[c], a, c);
+
+            // The taller of c's children stays with c, the other goes to a
+            if (height[f] > height[g]) {
+                child2[c] = f;
+                child2[a] = g;
+                parent[g] = a;
+                union(b, g, a);
+                union(a, f, c);
+                height[a] = 1 + Math.max(height[b], height[g]);
+                height[c] = 1 + Math.max(height[a], height[f]);
+            } else {
+                child2[c] = g;
+                child2[a] = f;
+                parent[f] = a;
+                union(b, f, a);
+                union(a, g, c);
+                height[a] = 1 + Math.max(height[b], height[f]);
+                height[c] = 1 + Math.max(height[a], height[g]);
+            }
+            return c;
+        }
+
+        // Rotate b up
+        if (diff < -1) {
+            int d = child1[b], e = child2[b];
+            child1[b] = a;
+            parent[b] = parent[a];
+            parent[a] = b;
+            replaceChild(parent[b], a, b);
+
+            // The taller of b's children stays with b, the other goes to a
+            if (height[d] > height[e]) {
+                child2[b] = d;
+                child1[a] = e;
+                parent[e] = a;
+                union(c, e, a);
+                union(a, d, b);
+                height[a] = 1 + Math.max(height[c], height[e]);
+                height[b] = 1 + Math.max(height[a], height[d]);
+            } else {
+                child2[b] = e;
+                child1[a] = d;
+                parent[d] = a;
+                union(c, d, a);
+                union(a, e, b);
+                height[a] = 1 + Math.max(height[c], height[d]);
+                height[b] = 1 + Math.max(height[a], height[e]);
+            }
+            return b;
+        }
+
+        return a;
+    }
+
+    // Point the parent's link at old to node instead, or make node the root if there is no parent
+    private void replaceChild(int p, int old, int node) {
+        if (p == NULL)
+            root = node;
+        else if (child1[p] == old)
+            child1[p] = node;
+        else
+            child2[p] = node;
+    }
+
+    // Sets the box of out to the box around nodes a and b
+    private void union(int a, int b, int out) {
+        int ia = a * 6, ib = b * 6, io = out * 6;
+        for (int i = 0; i < 3; i++) {
+            box[io + i] = Math.min(box[ia + i], box[ib + i]);
+            box[io + 3 + i] = Math.max(box[ia + 3 + i], box[ib + 3 + i]);
+        }
+    }
+
+    // Returns half the surface area of a node's box
+    private float area(int n) {
+        int b = n * 6;
+        float dx = box[b + 3] - box[b], dy = box[b + 4] - box[b + 1], dz = box[b + 5] - box[b + 2];
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    // Returns half the surface area of the box around nodes a and b
+    private float unionArea(int a, int b) {
+        int ia = a * 6, ib = b * 6;
+        float dx = Math.max(box[ia + 3], box[ib + 3]) - Math.min(box[ia], box[ib]);
+        float dy = Math.max(box[ia + 4], box[ib + 4]) - Math.min(box[ia + 1], box[ib + 1]);
+        float dz = Math.max(box[ia + 5], box[ib + 5]) - Math.min(box[ia + 2], box[ib + 2]);
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    // Returns an unused node, growing the arrays if they are full
+    private int allocate() {
+        if (freeList == NULL) {
+            if (nodeCount == height.length) {
+                int size = nodeCount * 2;
+                box = Arrays.copyOf(box, size * 6);
+                parent = Arrays.copyOf(parent, size);
+                child1 = Arrays.copyOf(child1, size);
+                child2 = Arrays.copyOf(child2, size);
+                height = Arrays.copyOf(height, size);
+                data = Arrays.copyOf(data, size);
+                Arrays.fill(height, nodeCount, size, -1);
+            }
+            parent[nodeCount] = NULL;
+            freeList = nodeCount++;
+        }
+        int n = freeList;
+        freeList = parent[n];
+        parent[n] = NULL;
+        child1[n] = NULL;
+        child2[n] = NULL;
+        height[n] = 0;
+        return n;
+    }
+
+    // Puts a node back on the free list
+    private void free(int n) {
+        parent[n] = freeList;
+        height[n] = -1;
+        data[n] = null;
+        freeList = n;
+    }
+
+    // Fails if the id isn't a leaf in the tree
+    private void checkLeaf(int leaf) {
+        if (leaf < 0 || leaf >= nodeCount || height[leaf] != 0)
+            throw new IllegalArgumentException("Not a leaf of the tree: " + leaf);
+    }
+}
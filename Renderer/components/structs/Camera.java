@@ -0,0 +1,61 @@
+// Package
+package components.structs;
+
+/* Camera
+ *
+ * The position and yaw of the viewer. The look direction and view matrix are worked out
+ * from these by update, which the renderer calls before drawing a frame.
+ *
+*/
+
+public class Camera {
+
+    // Properties
+    public Vec3 position = new Vec3();                      // The camera's position in world space
+    public float yaw;                                       // The yaw rotation of the camera
+    public Vec3 lookDir = new Vec3();                       // The direction the camera is looking, set by update
+    public Mat4 view = new Mat4();                          // Converts world space to view space, set by update
+    Vec3 up = new Vec3(0, 1, 0);                            // The up direction of the camera
+    Vec3 target = new Vec3();                               // The point the camera is looking at
+    Mat4 rotated = new Mat4();                              // The camera's yaw rotation
+    Mat4 cameraMat = new Mat4();                            // Stores the camera's point at matrix
+
+    // Constructors
+    public Camera() {}
+    public Camera(float x, float y, float z, float yaw) {
+        this.position.set(x, y, z);
+        this.yaw = yaw;
+    }
+
+    // Methods
+
+    // Moves the camera along its look direction, negative amounts move it backwards
+    // Uses the look direction from the last update
+    public void moveForward(float amount) {
+        position.x += lookDir.x * amount;
+        position.y += lookDir.y * amount;
+        position.z += lookDir.z * amount;
+    }
+
+    // Work out the look direction and view matrix from the position and yaw
+    public Mat4 update() {
+
+        // Set the look direction
+        target.set(0, 0, 1);
+
+        // Create a rotation matrix based on the yaw
+        Mat4.rotateY(yaw, rotated);
+        rotated.vec3Multiply(target, lookDir);
+        Vec3.add(position, lookDir, target);
+
+        // Create the view matrix
+        Mat4.pointAt(position, target, up, cameraMat);
+        return Mat4.quickInverse(cameraMat, view);
+    }
+
+    // Override the default toString method to return something useful
+    @Override
+    public String toString() {
+        return position.toString();
+    }
+}
@@ -0,0 +1,84 @@
+// Package
+package components.structs;
+
+/* Frustum
+ *
+ * The 6 planes of a view frustum, pulled straight out of a matrix that takes points to clip
+ * space (Gribb and Hartmann's method). If the matrix includes a mesh's own transform the
+ * planes are in the mesh's local space, so its bounds can be tested without transforming them.
+ * Each plane is a, b, c, d with a * x + b * y + c * z + d >= 0 on the inside.
+ *
+*/
+
+public class Frustum {
+
+    // Properties
+    public static final int OUTSIDE = 0;                    // Completely outside the frustum
+    public static final int INTERSECTS = 1;                 // Partly inside the frustum
+    public static final int INSIDE = 2;                     // Completely inside the frustum
+    public float[] planes = new float[24];                  // left, right, bottom, top, near, far planes, 4 floats each
+
+    // Constructors
+    public Frustum() {}
+    public Frustum(Mat4 m) { set(m, 1); }
+
+    // Methods
+
+    // Set the planes from a matrix that takes points to clip space, where the visible points
+    // have -w <= x <= w, -w <= y <= w and 0 <= z <= w
+    // guard widens the left, right, bottom and top planes to -guard * w <= x <= guard * w
+    public Frustum set(Mat4 mat, float guard) {
+        float[] m = mat.m;
+        for (int i = 0; i < 4; i++) {
+            // Row i of the matrix is how much the point's x, y, z or 1 adds to clip space x, y, z and w
+            float x = m[i * 4], y = m[i * 4 + 1], z = m[i * 4 + 2], w = m[i * 4 + 3];
+            planes[i] = guard * w + x;                      // Left
+            planes[4 + i] = guard * w - x;                  // Right
+            planes[8 + i] = guard * w + y;                  // Bottom
+            planes[12 + i] = guard * w - y;                 // Top
+            planes[16 + i] = z;                             // Near
+            planes[20 + i] = w - z;                         // Far
+        }
+        return this;
+    }
+
+    // Tests a box against the planes, returns OUTSIDE, INTERSECTS or INSIDE
+    public int testBox(Vec3 min, Vec3 max) {
+        return testBox(min.x, min.y, min.z, max.x, max.y, max.z);
+    }
+
+    // Same as above with the box's corners given as floats
+    public int testBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int result = INSIDE;
+        for (int p = 0; p < 24; p += 4) {
+            float a = planes[p], b = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+
+            // The corner furthest along the plane's normal, if it's outside the whole box is
+            float far = a * (a >= 0 ? maxX : minX) + b * (b >= 0 ? maxY : minY) + c * (c >= 0 ? maxZ : minZ) + d;
+            if (far < 0)
+                return OUTSIDE;
+
+            // The corner furthest behind the plane, if it's outside the box crosses the plane
+            float close = a * (a >= 0 ? minX : maxX) + b * (b >= 0 ? minY : maxY) + c * (c >= 0 ? minZ : maxZ) + d;
+            if (close < 0)
+                result = INTERSECTS;
+        }
+        return result;
+    }
+
+    // Tests a sphere against the planes, returns OUTSIDE, INTERSECTS or INSIDE
+    public int testSphere(Vec3 center, float radius) {
+        int result = INSIDE;
+        for (int p = 0; p < 24; p += 4) {
+            float a = planes[p], b = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+            // The planes aren't normalized, so scale the radius by the length of the normal instead
+            float dist = a * center.x + b * center.y + c * center.z + d;
+            float r = radius * (float)Math.sqrt(a * a + b * b + c * c);
+            if (dist < -r)
+                return OUTSIDE;
+            if (dist < r)
+                result = INTERSECTS;
+        }
+        return result;
+    }
+}
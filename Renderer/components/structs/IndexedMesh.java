@@ -0,0 +1,132 @@
+// Package
+package components.structs;
+
+// Java Packages
+import java.awt.Color;
+
+/* IndexedMesh
+ *
+ * A mesh stored as flat arrays instead of objects. Vertex positions are packed as x, y, z
+ * one after another and every triangle is 3 indices into the vertices, so a vertex shared
+ * by several triangles is only stored (and only needs transforming) once.
+ * Can be converted to and from the Mesh class to work with code that uses Triangles.
+ * The box and sphere around the vertices are kept so the renderer can skip meshes that are
+ * out of view, call computeBounds after changing the positions.
+ * A mesh can carry a chain of simpler versions of itself (see MeshSimplifier) that the
+ * renderer swaps in when the mesh is small on the screen.
+ *
+*/
+
+public class IndexedMesh {
+
+    // Properties
+    public float[] positions;                   // Vertex positions packed as x, y, z
+    public int[] indices;                       // 3 vertex indices for each triangle
+    public int vertexCount;                     // Number of vertices in use in the positions array
+    public int triangleCount;                   // Number of triangles in use in the indices array
+    public int color = Color.RED.getRGB();      // Color of every triangle, default is red
+    public int[] colors;                        // Color of each triangle, null if they all use color
+    public Vec3 min = new Vec3();               // Smallest x, y and z of any vertex
+    public Vec3 max = new Vec3();               // Largest x, y and z of any vertex
+    public Vec3 center = new Vec3();            // Centre of the bounding sphere
+    public float radius = -1;                   // Radius of the bounding sphere, -1 if the bounds haven't been worked out
+    public IndexedMesh[] lods;                  // Simpler versions of the mesh, each with fewer triangles than the last, null if none were built
+    public float error;                         // Roughly how far this mesh's surface is from the mesh it was simplified from, 0 for a full mesh
+
+    // Constructors
+    public IndexedMesh() { this(new float[0], 0, new int[0], 0); }
+    public IndexedMesh(float[] positions, int vertexCount, int[] indices, int triangleCount) {
+        this.positions = positions;
+        this.vertexCount = vertexCount;
+        this.indices = indices;
+        this.triangleCount = triangleCount;
+    }
+
+    // Methods
+
+    // Returns the color of the triangle at index t
+    public int colorOf(int t) {
+        return colors == null ? color : colors[t];
+    }
+
+    // Work out the bounding box and sphere of the vertices
+    // The sphere is centred on the box and just big enough to hold every vertex
+    public void computeBounds() {
+        if (vertexCount == 0) {
+            min.set(0, 0, 0);
+            max.set(0, 0, 0);
+            center.set(0, 0, 0);
+            radius = 0;
+            return;
+        }
+
+        float minX = Float.POSITIVE_INFINITY, minY = minX, minZ = minX;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+        for (int i = 0; i < vertexCount * 3; i += 3) {
+            float x = positions[i], y = positions[i + 1], z = positions[i + 2];
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+            if (z < minZ) minZ = z;
+            if (z > maxZ) maxZ = z;
+        }
+        min.set(minX, minY, minZ);
+        max.set(maxX, maxY, maxZ);
+
+        float cx = (minX + maxX) * 0.5f, cy = (minY + maxY) * 0.5f, cz = (minZ + maxZ) * 0.5f;
+        float r2 = 0;
+        for (int i = 0; i < vertexCount * 3; i += 3) {
+            float dx = positions[i] - cx, dy = positions[i + 1] - cy, dz = positions[i + 2] - cz;
+            r2 = Math.max(r2, dx * dx + dy * dy + dz * dz);
+        }
+        center.set(cx, cy, cz);
+        // Round up a little so rounding errors never leave a vertex outside
+        radius = (float)Math.sqrt(r2) * 1.0001f;
+    }
+
+    // Returns if the bounds have been worked out
+    public boolean hasBounds() {
+        return radius >= 0;
+    }
+
+    // Creates a Mesh with a Triangle for each triangle in this mesh
+    public Mesh toMesh() {
+        Triangle[] tris = new Triangle[triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            tris[t] = new Triangle(vertex(indices[t * 3]), vertex(indices[t * 3 + 1]), vertex(indices[t * 3 + 2]));
+            tris[t].color = colorOf(t);
+        }
+        return new Mesh(tris);
+    }
+
+    // Returns a new Vec3 holding the position of vertex i
+    public Vec3 vertex(int i) {
+        return new Vec3(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]);
+    }
+
+    // Static Methods
+
+    // Creates an IndexedMesh from a Mesh's triangles
+    // Triangles in a Mesh don't share points so each corner becomes its own vertex
+    public static IndexedMesh fromMesh(Mesh m) {
+        int n = m.tris.length;
+        float[] positions = new float[n * 9];
+        int[] indices = new int[n * 3];
+        int[] colors = new int[n];
+        for (int t = 0; t < n; t++) {
+            for (int c = 0; c < 3; c++) {
+                Vec3 p = m.tris[t].p[c];
+                positions[t * 9 + c * 3] = p.x;
+                positions[t * 9 + c * 3 + 1] = p.y;
+                positions[t * 9 + c * 3 + 2] = p.z;
+                indices[t * 3 + c] = t * 3 + c;
+            }
+            colors[t] = m.tris[t].color;
+        }
+        IndexedMesh mesh = new IndexedMesh(positions, n * 3, indices, n);
+        mesh.colors = colors;
+        mesh.computeBounds();
+        return mesh;
+    }
+}
@@ -1,184 +1,214 @@
 // Package
 package components.structs;
 
+// Project packages
+import components.simd.Simd;
+
 /* Mat4
- * 
+ *
  * Used to represent a float 4x4 matrix and methods to manipulate an instance of Mat4.
  * Contains other useful functions used in 3D graphics and physics.
- * 
+ * The matrix is stored in a flat array one row after another, so row r column c is m[r * 4 + c].
+ * Most methods come in two forms, one that returns a new instance and one that writes its
+ * result into an output parameter so it can be used every frame without creating garbage.
+ *
 */
 
 public class Mat4 {
-    
+
     // Properties
-    public float[][] m = new float[4][4];
+    public float[] m = new float[16];
 
     // Constructors
-    
+
     // Default is an identity matrix
     public Mat4() {
-        m[0][0] = 1;
-        m[1][1] = 1;
-        m[2][2] = 1;
-        m[3][3] = 1;
+        identity();
     }
 
     // Transpose a Vec3 onto a Mat4
     public Mat4(Vec3 v) {
-        m = new float[4][4];
-        m[0][0] = v.x;
-        m[1][1] = v.y;
-        m[2][2] = v.z;
-        m[3][3] = 1;
+        m[0] = v.x;
+        m[5] = v.y;
+        m[10] = v.z;
+        m[15] = 1;
     }
 
     // Create an identity matrix scaled to floats x, y, z and w values
     public Mat4(float x, float y, float z, float w) {
-        m = new float[4][4];
-        m[0][0] = x;
-        m[1][1] = y;
-        m[2][2] = z;
-        m[3][3] = w;
+        m[0] = x;
+        m[5] = y;
+        m[10] = z;
+        m[15] = w;
     }
 
     // Methods
 
+    // Returns the value at row r and column c
+    public float get(int r, int c) { return m[r * 4 + c]; }
+    // Sets the value at row r and column c
+    public void set(int r, int c, float v) { m[r * 4 + c] = v; }
+
+    // Reset this instance to an identity matrix
+    public Mat4 identity() {
+        for (int i = 0; i < 16; i++)
+            m[i] = (i % 5 == 0) ? 1 : 0;
+        return this;
+    }
+
+    // Copy the values of another Mat4 into this instance
+    public Mat4 set(Mat4 b) {
+        System.arraycopy(b.m, 0, m, 0, 16);
+        return this;
+    }
+
     // Multiply this instance by a Vec3 and return a new Vec3 instance
     public Vec3 vec3Multiply(Vec3 v) {
-        Vec3 out = new Vec3();
-        out.x = v.x * m[0][0] + v.y * m[1][0] + v.z * m[2][0] + v.w * m[3][0];
-        out.y = v.x * m[0][1] + v.y * m[1][1] + v.z * m[2][1] + v.w * m[3][1];
-        out.z = v.x * m[0][2] + v.y * m[1][2] + v.z * m[2][2] + v.w * m[3][2];
-        out.w = v.x * m[0][3] + v.y * m[1][3] + v.z * m[2][3] + v.w * m[3][3];
+        return vec3Multiply(v, new Vec3());
+    }
 
+    // Multiply this instance by a Vec3 and store the result in out, out can be v
+    public Vec3 vec3Multiply(Vec3 v, Vec3 out) {
+        float x = v.x * m[0] + v.y * m[4] + v.z * m[8] + v.w * m[12];
+        float y = v.x * m[1] + v.y * m[5] + v.z * m[9] + v.w * m[13];
+        float z = v.x * m[2] + v.y * m[6] + v.z * m[10] + v.w * m[14];
+        float w = v.x * m[3] + v.y * m[7] + v.z * m[11] + v.w * m[15];
+        out.x = x; out.y = y; out.z = z; out.w = w;
         return out;
     }
 
+    // Multiply count packed x, y, z points (w of 1) by this instance
+    // Reads from in starting at inOffset and writes x, y, z to out starting at outOffset
+    // The w of the result is dropped, so this is only for matrices that don't project
+    public void transformPoints(float[] in, int inOffset, float[] out, int outOffset, int count) {
+        Simd.KERNELS.transformPoints(m, in, inOffset, out, outOffset, count);
+    }
+
+    // Multiply count packed x, y, z points (w of 1) by this instance, keeping the w of the result
+    // Reads from in starting at inOffset and writes x, y, z, w to out starting at outOffset
+    public void transformPoints4(float[] in, int inOffset, float[] out, int outOffset, int count) {
+        Simd.KERNELS.transformPoints4(m, in, inOffset, out, outOffset, count);
+    }
+
     // Multiply this instance by another Mat4 instance
-    public void matrixMultiply(Mat4 b)
-	{
-		Mat4 mat = new Mat4();
-		for (int c = 0; c < 4; c++)
-			for (int r = 0; r < 4; r++)
-                mat.m[r][c] = this.m[r][0] * b.m[0][c] + this.m[r][1] * b.m[1][c] + this.m[r][2] * b.m[2][c] + this.m[r][3] * b.m[3][c];
-        this.m = mat.m;
-	}
+    public void matrixMultiply(Mat4 b) {
+        matrixMultiply(this, b, this);
+    }
 
     // Override the default toString method to return something useful
     @Override
     public String toString() {
-        return "({" + m[0][0] + ", " + m[1][0] + ", " + m[2][0] + ", " + m[3][0] + "}\n"+
-               " {" + m[0][1] + ", " + m[1][1] + ", " + m[2][1] + ", " + m[3][1] + "}\n"+
-               " {" + m[0][2] + ", " + m[1][2] + ", " + m[2][2] + ", " + m[3][2] + "}\n"+
-               " {" + m[0][3] + ", " + m[1][3] + ", " + m[2][3] + ", " + m[3][3] + "})"
+        return "({" + m[0] + ", " + m[4] + ", " + m[8] + ", " + m[12] + "}\n"+
+               " {" + m[1] + ", " + m[5] + ", " + m[9] + ", " + m[13] + "}\n"+
+               " {" + m[2] + ", " + m[6] + ", " + m[10] + ", " + m[14] + "}\n"+
+               " {" + m[3] + ", " + m[7] + ", " + m[11] + ", " + m[15] + "})"
         ;
     }
 
     // Static Methods
 
     // Same as instance method, multiplies lhs Mat4 and rhs Mat4 to return a new instance
-    public static Mat4 matrixMultiply(Mat4 a, Mat4 b)
-	{
-		Mat4 m = new Mat4();
-		for (int c = 0; c < 4; c++)
-			for (int r = 0; r < 4; r++)
-				m.m[r][c] = a.m[r][0] * b.m[0][c] + a.m[r][1] * b.m[1][c] + a.m[r][2] * b.m[2][c] + a.m[r][3] * b.m[3][c];
-		return m;
-	}
+    public static Mat4 matrixMultiply(Mat4 a, Mat4 b) {
+        return matrixMultiply(a, b, new Mat4());
+    }
+
+    // Multiplies lhs Mat4 and rhs Mat4 and stores the result in out
+    // out can be the same instance as a but not b
+    public static Mat4 matrixMultiply(Mat4 a, Mat4 b, Mat4 out) {
+        float[] l = a.m, r = b.m, o = out.m;
+        for (int row = 0; row < 16; row += 4) {
+            // Read the whole row first so the result can be written over a
+            float r0 = l[row], r1 = l[row + 1], r2 = l[row + 2], r3 = l[row + 3];
+            for (int c = 0; c < 4; c++)
+                o[row + c] = r0 * r[c] + r1 * r[4 + c] + r2 * r[8 + c] + r3 * r[12 + c];
+        }
+        return out;
+    }
 
     // Returns a new Mat4 rotated by float angle on the X axis
-    public static Mat4 rotateX(float angle) {
+    public static Mat4 rotateX(float angle) { return rotateX(angle, new Mat4()); }
+
+    // Sets out to a Mat4 rotated by float angle on the X axis
+    public static Mat4 rotateX(float angle, Mat4 out) {
 
         float theta = angle % 360;
-        Mat4 m = new Mat4();
-        m.m[1][1] = (float)Math.cos(theta);
-        m.m[1][2] = (float)Math.sin(theta);
-        m.m[2][1] = (float)-Math.sin(theta);
-        m.m[2][2] = (float)Math.cos(theta);
-        
-        return m;
+        out.identity();
+        out.m[5] = (float)Math.cos(theta);
+        out.m[6] = (float)Math.sin(theta);
+        out.m[9] = (float)-Math.sin(theta);
+        out.m[10] = (float)Math.cos(theta);
+
+        return out;
     }
 
     // Returns a new Mat4 rotated by float angle on the Y axis
-    public static Mat4 rotateY(float angle) {
-        
+    public static Mat4 rotateY(float angle) { return rotateY(angle, new Mat4()); }
+
+    // Sets out to a Mat4 rotated by float angle on the Y axis
+    public static Mat4 rotateY(float angle, Mat4 out) {
+
         float theta = angle % 360;
-        Mat4 m = new Mat4();
-        m.m[0][0] = (float)Math.cos(theta);
-        m.m[2][0] = (float)Math.sin(theta);
-        m.m[0][2] = (float)-Math.sin(theta);
-        m.m[2][2] = (float)Math.cos(theta);
-        
-        return m;
+        out.identity();
+        out.m[0] = (float)Math.cos(theta);
+        out.m[8] = (float)Math.sin(theta);
+        out.m[2] = (float)-Math.sin(theta);
+        out.m[10] = (float)Math.cos(theta);
+
+        return out;
     }
 
     // Returns a new Mat4 rotated by float angle on the Z axis
-    public static Mat4 rotateZ(float angle) {
-        
+    public static Mat4 rotateZ(float angle) { return rotateZ(angle, new Mat4()); }
+
+    // Sets out to a Mat4 rotated by float angle on the Z axis
+    public static Mat4 rotateZ(float angle, Mat4 out) {
+
         float theta = angle % 360;
-        Mat4 m = new Mat4();
-        m.m[0][0] = (float)Math.cos(theta);
-        m.m[0][1] = (float)Math.sin(theta);
-        m.m[1][0] = (float)-Math.sin(theta);
-        m.m[1][1] = (float)Math.cos(theta);
-        
-        return m;
+        out.identity();
+        out.m[0] = (float)Math.cos(theta);
+        out.m[1] = (float)Math.sin(theta);
+        out.m[4] = (float)-Math.sin(theta);
+        out.m[5] = (float)Math.cos(theta);
+
+        return out;
     }
 
     // Returns a new Mat4 translated by given float x, y and z values
-    public static Mat4 translate(float x, float y, float z) {
+    public static Mat4 translate(float x, float y, float z) { return translate(x, y, z, new Mat4()); }
 
-        Mat4 m = new Mat4();
-        m.m[3][0] = x;
-        m.m[3][1] = y;
-        m.m[3][2] = z;
-        
-        return m;
+    // Sets out to a Mat4 translated by given float x, y and z values
+    public static Mat4 translate(float x, float y, float z, Mat4 out) {
+
+        out.identity();
+        out.m[12] = x;
+        out.m[13] = y;
+        out.m[14] = z;
+
+        return out;
     }
 
     // Returns a new Mat4 translated by given Vec3
-    public static Mat4 translate(Vec3 v) {
-        
-        Mat4 m = new Mat4();
-        m.m[3][0] = v.x;
-        m.m[3][1] = v.y;
-        m.m[3][2] = v.z;
-        
-        return m;
-    }
+    public static Mat4 translate(Vec3 v) { return translate(v.x, v.y, v.z, new Mat4()); }
 
     // Returns a new Mat4 scaled by x, y, and z
-    public static Mat4 scale(float x, float y, float z) {
+    public static Mat4 scale(float x, float y, float z) { return scale(x, y, z, new Mat4()); }
 
-        Mat4 m = new Mat4();
-        m.m[0][0] = x;
-        m.m[1][1] = y;
-        m.m[2][2] = z;
-        
-        return m;
-   }
+    // Sets out to a Mat4 scaled by x, y, and z
+    public static Mat4 scale(float x, float y, float z, Mat4 out) {
 
-    // Returns a new Mat4 uniformly scaled by float s
-    public static Mat4 scale(float s) {
+        out.identity();
+        out.m[0] = x;
+        out.m[5] = y;
+        out.m[10] = z;
 
-        Mat4 m = new Mat4();
-        m.m[0][0] = s;
-        m.m[1][1] = s;
-        m.m[2][2] = s;
-        
-        return m;
+        return out;
     }
 
+    // Returns a new Mat4 uniformly scaled by float s
+    public static Mat4 scale(float s) { return scale(s, s, s, new Mat4()); }
+
     // Returns a new Mat4 scaled by a Vec3 v
-    public static Mat4 scale(Vec3 v) {
-        
-        Mat4 m = new Mat4();
-        m.m[0][0] = v.x;
-        m.m[1][1] = v.y;
-        m.m[2][2] = v.z;
-        
-        return m;
-    }
+    public static Mat4 scale(Vec3 v) { return scale(v.x, v.y, v.z, new Mat4()); }
 
     // Returns a new Mat4 used to project points into screen space
     // Near and far are float values representing the start z and end z values of the viewer
@@ -190,55 +220,65 @@ public class Mat4 {
         float aspectRatio = height / width;
         float fovRad = (float)(1.0f / Math.tan(Math.toRadians(fov * 0.5f)));
         Mat4 m = new Mat4();
-        m.m[0][0] = aspectRatio * fovRad;
-        m.m[1][1] = fovRad;
-        m.m[2][2] = far / (far - near);
-        m.m[3][2] = (-far * near) / (far - near);
-        m.m[2][3] = 1;
-        m.m[3][3] = 0;
+        m.m[0] = aspectRatio * fovRad;
+        m.m[5] = fovRad;
+        m.m[10] = far / (far - near);
+        m.m[14] = (-far * near) / (far - near);
+        m.m[11] = 1;
+        m.m[15] = 0;
 
         return m;
     }
 
     // Creates a new Mat4 that can be multiplied by Vec3 or Mat4 to rotate and translate
     // based on a given position, look direction and up vector
-    public static Mat4 pointAt(Vec3 pos, Vec3 target, Vec3 up) {
+    public static Mat4 pointAt(Vec3 pos, Vec3 target, Vec3 up) { return pointAt(pos, target, up, new Mat4()); }
+
+    // Same as above but stores the matrix in out
+    public static Mat4 pointAt(Vec3 pos, Vec3 target, Vec3 up, Mat4 out) {
 
         // Get the forward direction
-        Vec3 forward = Vec3.subtract(target, pos);
-        forward.normalize();
+        float fx = target.x - pos.x, fy = target.y - pos.y, fz = target.z - pos.z;
+        float fl = (float)Math.sqrt(fx * fx + fy * fy + fz * fz);
+        fx /= fl; fy /= fl; fz /= fl;
 
         // Calculate the corrected up direction using the new forward vector
-        Vec3 a = Vec3.multiply(forward, up.dot(forward));
-        Vec3 newUp = Vec3.subtract(up, a);
-        newUp.normalize();
+        float d = up.x * fx + up.y * fy + up.z * fz;
+        float ux = up.x - fx * d, uy = up.y - fy * d, uz = up.z - fz * d;
+        float ul = (float)Math.sqrt(ux * ux + uy * uy + uz * uz);
+        ux /= ul; uy /= ul; uz /= ul;
 
         // The right direction is the plane perpendicular to the up and forward directions
-        // This is easily found using the cross method
-        Vec3 right = Vec3.cross(newUp, forward);
+        // This is easily found using the cross product
+        float rx = uy * fz - uz * fy;
+        float ry = uz * fx - ux * fz;
+        float rz = ux * fy - uy * fx;
 
-        // Return a new Mat4 using the up, forward and right directions for rotation
+        // Use the up, forward and right directions for rotation
         // and the pos x, y, z values for translation
-        Mat4 matrix = new Mat4();
-		matrix.m[0][0] = right.x;	matrix.m[0][1] = right.y;	matrix.m[0][2] = right.z;	matrix.m[0][3] = 0.0f;
-		matrix.m[1][0] = newUp.x;	matrix.m[1][1] = newUp.y;	matrix.m[1][2] = newUp.z;	matrix.m[1][3] = 0.0f;
-		matrix.m[2][0] = forward.x;	matrix.m[2][1] = forward.y;	matrix.m[2][2] = forward.z;	matrix.m[2][3] = 0.0f;
-		matrix.m[3][0] = pos.x;	    matrix.m[3][1] = pos.y;	    matrix.m[3][2] = pos.z;	    matrix.m[3][3] = 1.0f;
-		return matrix;
+        float[] o = out.m;
+        o[0] = rx;      o[1] = ry;      o[2] = rz;      o[3] = 0.0f;
+        o[4] = ux;      o[5] = uy;      o[6] = uz;      o[7] = 0.0f;
+        o[8] = fx;      o[9] = fy;      o[10] = fz;     o[11] = 0.0f;
+        o[12] = pos.x;  o[13] = pos.y;  o[14] = pos.z;  o[15] = 1.0f;
+        return out;
     }
 
     // Quick inverse matrix. This will only work for translation and rotation
     // Does not work for scaling. For a full feature 3D renderer this would idealy
     // be written using a proper inverse function
-    public static Mat4 quickInverse(Mat4 m) {
-        Mat4 matrix = new Mat4();
-		matrix.m[0][0] = m.m[0][0]; matrix.m[0][1] = m.m[1][0]; matrix.m[0][2] = m.m[2][0]; matrix.m[0][3] = 0.0f;
-		matrix.m[1][0] = m.m[0][1]; matrix.m[1][1] = m.m[1][1]; matrix.m[1][2] = m.m[2][1]; matrix.m[1][3] = 0.0f;
-		matrix.m[2][0] = m.m[0][2]; matrix.m[2][1] = m.m[1][2]; matrix.m[2][2] = m.m[2][2]; matrix.m[2][3] = 0.0f;
-		matrix.m[3][0] = -(m.m[3][0] * matrix.m[0][0] + m.m[3][1] * matrix.m[1][0] + m.m[3][2] * matrix.m[2][0]);
-		matrix.m[3][1] = -(m.m[3][0] * matrix.m[0][1] + m.m[3][1] * matrix.m[1][1] + m.m[3][2] * matrix.m[2][1]);
-		matrix.m[3][2] = -(m.m[3][0] * matrix.m[0][2] + m.m[3][1] * matrix.m[1][2] + m.m[3][2] * matrix.m[2][2]);
-		matrix.m[3][3] = 1.0f;
-		return matrix;
-    }
-}
\ No newline at end of file
+    public static Mat4 quickInverse(Mat4 m) { return quickInverse(m, new Mat4()); }
+
+    // Same as above but stores the matrix in out, out must not be m
+    public static Mat4 quickInverse(Mat4 in, Mat4 out) {
+        float[] m = in.m, o = out.m;
+        o[0] = m[0]; o[1] = m[4]; o[2] = m[8]; o[3] = 0.0f;
+        o[4] = m[1]; o[5] = m[5]; o[6] = m[9]; o[7] = 0.0f;
+        o[8] = m[2]; o[9] = m[6]; o[10] = m[10]; o[11] = 0.0f;
+        o[12] = -(m[12] * o[0] + m[13] * o[4] + m[14] * o[8]);
+        o[13] = -(m[12] * o[1] + m[13] * o[5] + m[14] * o[9]);
+        o[14] = -(m[12] * o[2] + m[13] * o[6] + m[14] * o[10]);
+        o[15] = 1.0f;
+        return out;
+    }
+}
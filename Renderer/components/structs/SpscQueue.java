@@ -0,0 +1,90 @@
+// Package
+package components.structs;
+
+// Java Packages
+import java.util.concurrent.atomic.AtomicLong;
+
+/* SpscQueue
+ *
+ * A bounded first in, first out queue for handing objects from one thread to another without
+ * locks. Exactly one thread may offer and exactly one other thread may poll. Items sit in a
+ * ring whose size is a power of 2; the producer and consumer each own one end and publish it
+ * to the other with an ordered write, so an item is always fully written before it can be taken.
+ * offer and poll never block, callers that need to wait park until the other side wakes them.
+ *
+*/
+
+public class SpscQueue<T> {
+
+    // Properties
+    private final Object[] items;                           // The ring of items
+    private final int mask;                                 // Ring size - 1, turns a position into an index
+    private final AtomicLong head = new AtomicLong();       // Position of the next item to poll, only written by the consumer
+    private final AtomicLong tail = new AtomicLong();       // Position of the next free slot, only written by the producer
+    private long headCache;                                 // The producer's last look at head, saves reading it every offer
+    private long tailCache;                                 // The consumer's last look at tail, saves reading it every poll
+
+    // Constructors
+    public SpscQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Capacity must be from 1 to 2^30: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        items = new Object[size];
+        mask = size - 1;
+    }
+
+    // Methods
+
+    // Adds an item to the back of the queue, returns false if it is full
+    // Only call from the producer thread
+    public boolean offer(T item) {
+        if (item == null)
+            throw new NullPointerException("Can't queue null");
+        long t = tail.get();
+        if (t - headCache >= items.length) {
+            headCache = head.get();
+            if (t - headCache >= items.length)
+                return false;
+        }
+        items[(int)t & mask] = item;
+        // The item must be visible before the consumer can see the new tail
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Takes the item at the front of the queue, returns null if it is empty
+    // Only call from the consumer thread
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h >= tailCache) {
+            tailCache = tail.get();
+            if (h >= tailCache)
+                return null;
+        }
+        int i = (int)h & mask;
+        T item = (T)items[i];
+        items[i] = null;
+        // The slot must be emptied before the producer can see it is free
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    // Returns the number of items in the queue, can be out of date by the time it returns
+    public int size() {
+        long h = head.get();
+        return (int)Math.max(0, Math.min(tail.get() - h, items.length));
+    }
+
+    // Returns if the queue is empty, can be out of date by the time it returns
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Returns the most items the queue can hold
+    public int capacity() {
+        return items.length;
+    }
+}
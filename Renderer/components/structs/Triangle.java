@@ -48,12 +48,7 @@ public class Triangle {
     // Scales the color of this triangle by a given float
     // Used to dim the triangle
     public int scaleColor(float scale) {
-        Color c = new Color(color);
-        int r, g, b;
-        r = Math.max(0,Math.min(255,(int)(c.getRed() * scale)));
-        g = Math.max(0,Math.min(255,(int)(c.getGreen() * scale)));
-        b = Math.max(0,Math.min(255,(int)(c.getBlue() * scale)));
-        return new Color(r,g,b,1).getRGB();
+        return scaleColor(color, scale);
     }
 
     // Gets the bounding box of the triangle in 2D screen space
@@ -127,4 +122,16 @@ public class Triangle {
         }
         return new Triangle[]{this};
     }
-}
\ No newline at end of file
+
+    // Static Methods
+
+    // Scales the red, green and blue of an RGB color by a given float
+    // Works on the int directly so no Color instances are created
+    public static int scaleColor(int color, float scale) {
+        int r, g, b;
+        r = Math.max(0,Math.min(255,(int)(((color >> 16) & 0xFF) * scale)));
+        g = Math.max(0,Math.min(255,(int)(((color >> 8) & 0xFF) * scale)));
+        b = Math.max(0,Math.min(255,(int)((color & 0xFF) * scale)));
+        return (1 << 24) | (r << 16) | (g << 8) | b;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+// Package
+package components.structs;
+
+// Java Packages
+import java.util.Arrays;
+
+/* TriangleBuffer
+ *
+ * A growable list of triangles stored in flat arrays. Each triangle is 9 floats, the x, y and z
+ * of its 3 points, and an int color. Used to pass triangles between stages of the renderer,
+ * once a buffer has grown to fit a frame it can be cleared and refilled without creating garbage.
+ *
+*/
+
+public class TriangleBuffer {
+
+    // Properties
+    public float[] p;                           // Points of each triangle, 9 floats per triangle
+    public int[] color;                         // Color of each triangle
+    public int count;                           // Number of triangles in the buffer
+    private long[] keys = new long[0];          // Scratch space used when sorting
+
+    // Constructors
+    public TriangleBuffer() { this(64); }
+    public TriangleBuffer(int capacity) {
+        p = new float[capacity * 9];
+        color = new int[capacity];
+    }
+
+    // Methods
+
+    // Empty the buffer, keeps the arrays to be reused
+    public void clear() { count = 0; }
+
+    // Make sure there is room for n triangles
+    public void ensureCapacity(int n) {
+        if (n > color.length) {
+            int size = Math.max(n, color.length * 2);
+            p = Arrays.copyOf(p, size * 9);
+            color = Arrays.copyOf(color, size);
+        }
+    }
+
+    // Add a triangle with the given color to the end of the buffer and return its index
+    // The points need to be filled in with set
+    public int add(int c) {
+        ensureCapacity(count + 1);
+        color[count] = c;
+        return count++;
+    }
+
+    // Copy triangle t from another buffer to the end of this one and return its index
+    public int add(TriangleBuffer b, int t) {
+        int i = add(b.color[t]);
+        System.arraycopy(b.p, t * 9, p, i * 9, 9);
+        return i;
+    }
+
+    // Copy every triangle from another buffer to the end of this one
+    public void addAll(TriangleBuffer b) {
+        ensureCapacity(count + b.count);
+        System.arraycopy(b.p, 0, p, count * 9, b.count * 9);
+        System.arraycopy(b.color, 0, color, count, b.count);
+        count += b.count;
+    }
+
+    // Set point c (0, 1 or 2) of triangle t
+    public void set(int t, int c, float x, float y, float z) {
+        int i = t * 9 + c * 3;
+        p[i] = x; p[i + 1] = y; p[i + 2] = z;
+    }
+
+    // Copies the triangles into out ordered from the furthest average z to the closest
+    // Triangles with the same depth keep their order
+    public void sortBackToFront(TriangleBuffer out) {
+
+        // Pack a sortable version of each depth and the triangle's index into a long
+        if (keys.length < count)
+            keys = new long[color.length];
+        for (int t = 0; t < count; t++) {
+            float z = (p[t * 9 + 2] + p[t * 9 + 5] + p[t * 9 + 8]) / 3;
+            int bits = Float.floatToIntBits(z);
+            // Flip the bits so that sorting smallest first puts the furthest triangle first
+            int key = ~(bits ^ ((bits >> 31) & 0x7FFFFFFF));
+            keys[t] = ((long)key << 32) | t;
+        }
+        Arrays.sort(keys, 0, count);
+
+        // Copy the triangles across in sorted order
+        out.clear();
+        out.ensureCapacity(count);
+        for (int t = 0; t < count; t++)
+            out.add(this, (int)keys[t]);
+    }
+}
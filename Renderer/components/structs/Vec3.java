@@ -20,6 +20,11 @@ public class Vec3 {
 
     // Methods
 
+    // Set the x, y and z values of this instance
+    public Vec3 set(float x, float y, float z) { this.x = x; this.y = y; this.z = z; return this; }
+    // Copy the x, y and z values of another Vec3 into this instance
+    public Vec3 set(Vec3 b) { return set(b.x, b.y, b.z); }
+
     // Add the x, y and z values from another Vec3 to this instance
     public void add(Vec3 b) { this.x += b.x; this.y += b.y; this.z += b.z; }
     // Add an x, y and z float value to this instance's properties
@@ -80,13 +85,19 @@ public class Vec3 {
     public static Vec3 divide(Vec3 a, Vec3 b) { return new Vec3(a.x / b.x, a.y / b.y, a.z / b.z); }
     public static Vec3 divide(Vec3 a, float n) { return new Vec3(a.x / n, a.y / n, a.z / n); }
 
-    // Returns the cross product of 3 Vec3 instances
+    // Same again but store the result in out instead of creating a new Vec3, out can be a or b
+    public static Vec3 add(Vec3 a, Vec3 b, Vec3 out) { return out.set(a.x + b.x, a.y + b.y, a.z + b.z); }
+    public static Vec3 subtract(Vec3 a, Vec3 b, Vec3 out) { return out.set(a.x - b.x, a.y - b.y, a.z - b.z); }
+    public static Vec3 multiply(Vec3 a, float n, Vec3 out) { return out.set(a.x * n, a.y * n, a.z * n); }
+
+    // Returns the cross product of 2 Vec3 instances
     public static Vec3 cross(Vec3 a, Vec3 b) {
-        Vec3 c = new Vec3();
-        c.x = a.y * b.z - a.z * b.y;
-        c.y = a.z * b.x - a.x * b.z;
-        c.z = a.x * b.y - a.y * b.x;
-        return c;
+        return cross(a, b, new Vec3());
+    }
+
+    // Stores the cross product of 2 Vec3 instances in out, out can be a or b
+    public static Vec3 cross(Vec3 a, Vec3 b, Vec3 out) {
+        return out.set(a.y * b.z - a.z * b.y, a.z * b.x - a.x * b.z, a.x * b.y - a.y * b.x);
     }
 
     // Returns a Vec3 representing a point between 2 Vec3 (a and b)
@@ -106,4 +117,4 @@ public class Vec3 {
     public static float shortestDisToPlane(Vec3 p, Vec3 n, Vec3 plane) {
         return (n.dot(p) - n.dot(plane));
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,67 @@
+// Package
+package components.bench;
+
+// Project packages
+import components.*;
+import components.structs.*;
+
+// Java packages
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* LoadBenchmark
+ *
+ * Times reading a model, which doesn't depend on the resolution so isn't part of RenderBenchmark.
+ * The cache is turned off so the OBJ file is parsed on every call. The benchmarks are:
+ *
+ *   load      ModelLoader.load, parsing the file and building its levels of detail
+ *   parse     ObjParser.parseParallel on the parse threads, files under 4 MB are parsed on one thread anyway
+ *
+ * Run with: gradle jmh -PjmhArgs="LoadBenchmark [JMH options]"
+ *   -p model=file.obj         model to read (default funnymunkey.obj in the project directory)
+ *   -p parseThreads=n         threads the parse benchmark uses (default 0, one per core)
+ *
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector", "-Djava.awt.headless=true" })
+public class LoadBenchmark {
+
+    // Parameters
+    @Param("funnymunkey.obj")
+    public String model;                                    // Model read by every benchmark
+
+    @Param("0")
+    public int parseThreads;                                // Threads the parse benchmark uses, 0 for one per core
+
+    // Properties
+    Path file;                                              // The model's file
+
+    // Methods
+
+    // Turns off the cache so every call reads the OBJ file
+    @Setup(Level.Trial)
+    public void setup() {
+        ModelLoader.setCacheDirectory(null);
+        file = Paths.get(model);
+        if (parseThreads == 0)
+            parseThreads = Runtime.getRuntime().availableProcessors();
+    }
+
+    @Benchmark
+    public IndexedMesh load() throws IOException {
+        return ModelLoader.load(file);
+    }
+
+    @Benchmark
+    public IndexedMesh parse() throws IOException {
+        return ObjParser.parseParallel(file, parseThreads);
+    }
+}
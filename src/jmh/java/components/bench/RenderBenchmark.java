@@ -0,0 +1,147 @@
+// Package
+package components.bench;
+
+// Project packages
+import components.*;
+import components.structs.*;
+
+// Java packages
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* RenderBenchmark
+ *
+ * Times each stage of the renderer headlessly so changes can be checked for regressions.
+ * Every benchmark draws the same fixed view of the model at each resolution, JMH warms it up,
+ * forks a fresh JVM for it and reports the mean time of a single call. The benchmarks are:
+ *
+ *   geometry  transform, backface culling, clipping and projection of the whole model
+ *   clip      clipping every triangle of the model in clip space and projecting it to the screen
+ *   clear     clearing the frame and z buffers, with nothing drawn since the last clear
+ *   raster    clearing and then rasterizing the projected triangles (subtract clear for the raster alone)
+ *   render    a whole frame
+ *
+ * Run with: gradle jmh -PjmhArgs="RenderBenchmark [JMH options]"
+ *   -p model=file.obj         model to draw (default funnymunkey.obj in the project directory)
+ *   -p size=WxH,...           resolutions (default 640x360,1280x720,1920x1080,3840x2160)
+ *   -p rasterThreads=n        raster threads (default 1 so numbers don't depend on the machine's cores)
+ *   -p geometryThreads=n      geometry threads (default 1)
+ *   -p fullClear=true         fill every pixel of both buffers on each clear instead of only what was drawn
+ *
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector", "-Djava.awt.headless=true" })
+public class RenderBenchmark {
+
+    // Parameters
+    @Param("funnymunkey.obj")
+    public String model;                                    // Model drawn by every benchmark
+
+    @Param({ "640x360", "1280x720", "1920x1080", "3840x2160" })
+    public String size;                                     // Resolution drawn at
+
+    @Param("1")
+    public int rasterThreads;                               // Raster threads used by the renderer
+
+    @Param("1")
+    public int geometryThreads;                             // Geometry threads used by the renderer
+
+    @Param("false")
+    public boolean fullClear;                               // Fill every pixel on each clear
+
+    // Properties
+    IndexedMesh mesh;                                       // The model
+    Renderer renderer;                                      // Draws the model at the resolution
+    Scene scene;                                            // Just the model, turned to face the camera
+    Camera camera;                                          // The camera the model is seen from
+    TriangleBuffer projected;                               // The model projected once, the input of the raster benchmark
+    TriangleBuffer work;                                    // Output of the geometry and clip benchmarks
+    Clipper clipper;                                        // Clips the model on its own
+    float[] clip;                                           // The model's vertices in clip space
+    int[] codes;                                            // Which planes each vertex is outside of
+    int centre;                                             // Index of the pixel in the middle of the frame
+
+    // Methods
+
+    // Loads the model and sets up the same view of it at the resolution
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ModelLoader.setCacheDirectory(null);
+        mesh = ModelLoader.load(Paths.get(model));
+        if (mesh.triangleCount == 0)
+            throw new IllegalStateException("No triangles in " + model);
+
+        String[] wh = size.split("x");
+        int width = Integer.parseInt(wh[0]), height = Integer.parseInt(wh[1]);
+        centre = width * (height / 2) + width / 2;
+
+        renderer = new Renderer(width, height);
+        renderer.setRasterThreads(rasterThreads);
+        renderer.setGeometryThreads(geometryThreads);
+        renderer.partialClear = !fullClear;
+        scene = new Scene();
+        Mat4 transform = Mat4.rotateZ(0.5f);
+        transform.matrixMultiply(Mat4.rotateX(0.5f));
+        transform.matrixMultiply(Mat4.translate(0, 0, 3));
+        scene.add(mesh, transform);
+        camera = new Camera();
+        camera.update();
+
+        // Keep a copy of the output of each stage to use as the input of the next
+        projected = new TriangleBuffer();
+        renderer.geometry(scene, camera, projected);
+        work = new TriangleBuffer();
+
+        // The model's vertices in clip space for the clipper on its own
+        clipper = new Clipper(width, height);
+        float[] world = new float[mesh.vertexCount * 3];
+        clip = new float[mesh.vertexCount * 4];
+        codes = new int[mesh.vertexCount];
+        transform.transformPoints(mesh.positions, 0, world, 0, mesh.vertexCount);
+        Mat4.matrixMultiply(camera.view, renderer.getProjection()).transformPoints4(world, 0, clip, 0, mesh.vertexCount);
+        clipper.outcodes(clip, 0, codes, 0, mesh.vertexCount);
+    }
+
+    @Benchmark
+    public int geometry() {
+        renderer.geometry(scene, camera, work);
+        return work.count;
+    }
+
+    @Benchmark
+    public int clip() {
+        work.clear();
+        int[] idx = mesh.indices;
+        for (int t = 0; t < mesh.triangleCount * 3; t += 3)
+            clipper.clipTriangle(clip, idx[t], idx[t + 1], idx[t + 2],
+                codes[idx[t]], codes[idx[t + 1]], codes[idx[t + 2]], 0, work);
+        return work.count;
+    }
+
+    @Benchmark
+    public int clear() {
+        renderer.clear();
+        return renderer.getFrameBuffer()[0];
+    }
+
+    @Benchmark
+    public int raster() {
+        // Without clearing the z buffer every pixel after the first call would fail the depth test
+        renderer.clear();
+        renderer.raster(projected);
+        return renderer.getFrameBuffer()[centre];
+    }
+
+    @Benchmark
+    public int render() {
+        renderer.render(scene, camera);
+        return renderer.getFrameBuffer()[centre];
+    }
+}